@@ -0,0 +1,338 @@
+package cs.utah.sherlock;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers the questions about a batch of stories as a pipeline of stages: reading stories from disk, or from an archive
+ * through a {@link StorySource}, annotating them, answering the questions and writing the answers out in order. The
+ * stages are connected by bounded queues, so a fast stage blocks instead of piling up annotated documents, which are
+ * large.
+ * @author Tobin Yehle
+ */
+public class BatchPipeline {
+    /**
+     * A story on its way through the pipeline.
+     */
+    private static class Item {
+        final int index;
+        final String id;
+        Story story;
+        PreparedDocument document;
+        String answers = "";
+        // true once the answers are final, for stories resumed from the journal
+        boolean done;
+        // what went wrong if a stage threw while working on this story
+        Throwable failure;
+
+        Item(int index, String id) {
+            this.index = index;
+            this.id = id;
+        }
+    }
+
+    /** Marks the end of a queue. Each worker that takes it passes it on when the last worker of its stage stops. */
+    private static final Item END = new Item(-1, null);
+
+    /**
+     * Counts how busy a stage is and how full the queue in front of it gets.
+     */
+    public static class Stage {
+        public final String name;
+        public final int threads;
+        private final BlockingQueue<Item> input;
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong depthSum = new AtomicLong();
+        private final AtomicLong depthSamples = new AtomicLong();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicInteger running;
+
+        private Stage(String name, int threads, BlockingQueue<Item> input) {
+            this.name = name;
+            this.threads = threads;
+            this.input = input;
+            this.running = new AtomicInteger(threads);
+        }
+
+        /**
+         * Takes the next item from the queue in front of this stage, noting how deep the queue was.
+         */
+        private Item take() throws InterruptedException {
+            int depth = input.size();
+            depthSum.addAndGet(depth);
+            depthSamples.incrementAndGet();
+            maxDepth.accumulateAndGet(depth, Math::max);
+            return input.take();
+        }
+
+        private void worked(long start) {
+            busyNanos.addAndGet(System.nanoTime() - start);
+            items.incrementAndGet();
+        }
+
+        /**
+         * @param elapsedNanos How long the pipeline ran
+         * @return The fraction of the time this stage's threads were doing work
+         */
+        public double utilization(long elapsedNanos) {
+            return elapsedNanos > 0 ? (double) busyNanos.get() / (threads * elapsedNanos) : 0;
+        }
+
+        /**
+         * @return The average number of items waiting in front of this stage when it went to take one
+         */
+        public double averageDepth() {
+            long samples = depthSamples.get();
+            return samples > 0 ? (double) depthSum.get() / samples : 0;
+        }
+
+        public int maxDepth() {
+            return maxDepth.get();
+        }
+
+        public long items() {
+            return items.get();
+        }
+    }
+
+    private final Sherlock sherlock;
+    private final int annotators;
+    private final int scorers;
+    private final int queueCapacity;
+
+    private Journal journal;
+    private int resumed;
+
+    private List<Stage> stages = Collections.emptyList();
+    private long elapsedNanos;
+
+    /**
+     * @param sherlock The object that answers the questions
+     * @param annotators The number of threads annotating stories
+     * @param scorers The number of threads answering questions. Each one also answers a story's questions in parallel.
+     * @param queueCapacity The number of stories each queue between stages can hold
+     */
+    public BatchPipeline(Sherlock sherlock, int annotators, int scorers, int queueCapacity) {
+        if(annotators < 1 || scorers < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("Every stage needs at least one thread and one queue slot");
+        this.sherlock = sherlock;
+        this.annotators = annotators;
+        this.scorers = scorers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Writes the answers to each story to a journal as soon as they are found. Stories already in the journal are not
+     * answered again, but their answers from the journal are written out in their place.
+     * @param journal The journal to use, or null to not keep one
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Answers the questions about a number of stories, writing the answers in the order of the IDs. The output is the
+     * same as concatenating {@link Driver#answerQuestions} for each story.
+     * @param prefix The prefix path to all the files, or the archive they are in
+     * @param ids The IDs of the stories to answer questions about
+     * @param out Where to write the answers
+     * @return True if every story was answered. Otherwise only the answers before the first story that failed are
+     *         written.
+     */
+    public boolean run(String prefix, List<String> ids, PrintStream out) throws InterruptedException, IOException {
+        try(StorySource source = StorySource.open(prefix, ids)) {
+            return run(source, ids, out);
+        }
+    }
+
+    /**
+     * Answers the questions about a number of stories, writing the answers in the order of the IDs.
+     * @param source Where to read the stories from. Reading, and any decompressing, is done on the pipeline's read
+     *               thread, so it overlaps annotating the stories before.
+     * @param ids The IDs of the stories to answer questions about
+     * @param out Where to write the answers
+     * @return True if every story was answered. Otherwise only the answers before the first story that failed are
+     *         written.
+     */
+    public boolean run(StorySource source, List<String> ids, PrintStream out) throws InterruptedException {
+        // every story is waiting to be read from the start, so this one is not bounded
+        BlockingQueue<Item> waiting = new LinkedBlockingQueue<>();
+        BlockingQueue<Item> read = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> annotated = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> answered = new ArrayBlockingQueue<>(queueCapacity);
+        for(int i = 0; i < ids.size(); i++)
+            waiting.add(new Item(i, ids.get(i)));
+        waiting.add(END);
+
+        Stage readStage = new Stage("read", 1, waiting);
+        Stage annotate = new Stage("annotate", annotators, read);
+        Stage score = new Stage("score", scorers, annotated);
+        Stage write = new Stage("write", 1, answered);
+        stages = Util.listOf(readStage, annotate, score, write);
+        resumed = 0;
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+
+        threads.add(new Thread(() -> work(readStage, read, annotators, item -> {
+            String done = journal == null ? null : journal.get(item.id);
+            // stories finished by an earlier run pass straight through with their answers
+            if(done != null) {
+                item.answers = done;
+                item.done = true;
+                resumed++;
+            }
+            else {
+                item.story = source.read(item.id);
+                // the source has already printed why, but the story's answers are missing, so the run has failed
+                if(item.story == null)
+                    item.failure = new IOException("Story " + item.id + " could not be read");
+            }
+        }), "sherlock-read"));
+
+        for(int i = 0; i < annotators; i++) {
+            threads.add(new Thread(() -> work(annotate, annotated, scorers, item -> {
+                item.document = sherlock.annotate(item.story.text);
+            }), "sherlock-annotate-" + i));
+        }
+
+        for(int i = 0; i < scorers; i++) {
+            threads.add(new Thread(() -> work(score, answered, 1, item -> {
+                item.answers = Driver.formatAnswers(item.story, sherlock.answerQuestions(item.document, item.story.questions));
+                // the answers are all that is left to write, so let the document go
+                item.document = null;
+                if(journal != null) {
+                    try {
+                        journal.append(ids.get(item.index), item.answers);
+                    } catch (IOException e) {
+                        // the answers are still good, the story will just be answered again if the run is resumed
+                        e.printStackTrace();
+                    }
+                }
+            }), "sherlock-score-" + i));
+        }
+
+        for(Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        boolean succeeded;
+        try {
+            succeeded = writeInOrder(write, out);
+        } finally {
+            for(Thread thread : threads)
+                thread.interrupt();
+        }
+        elapsedNanos = System.nanoTime() - start;
+        return succeeded;
+    }
+
+    private interface Task {
+        void apply(Item item);
+    }
+
+    /**
+     * Runs one thread of a stage until the end of its input.
+     * @param stage The stage the thread is part of
+     * @param output The queue in front of the next stage
+     * @param downstream The number of threads in the next stage, each of which needs to see the end of the queue
+     * @param task The work to do on each item
+     */
+    private void work(Stage stage, BlockingQueue<Item> output, int downstream, Task task) {
+        try {
+            for(Item item = stage.take(); item != END; item = stage.take()) {
+                long start = System.nanoTime();
+                if(!item.done && item.failure == null) {
+                    try {
+                        task.apply(item);
+                    } catch (Throwable e) {
+                        // pass the story on marked as failed rather than stall the writer waiting for it
+                        System.err.println("Story " + item.id + " failed in the " + stage.name + " stage");
+                        e.printStackTrace();
+                        item.failure = e;
+                        item.story = null;
+                        item.document = null;
+                    }
+                }
+                stage.worked(start);
+                output.put(item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // the next stage has to see the end even if this one stopped early, or the writer waits forever
+            if(stage.running.decrementAndGet() == 0) {
+                try {
+                    for(int i = 0; i < downstream; i++)
+                        output.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the answers in story order, holding on to any that finish early. Nothing is written from the first story
+     * that failed on, but the rest of the stories are still taken so the other stages can finish, and answered ones
+     * still go in the journal.
+     * @return True if no story failed
+     */
+    private boolean writeInOrder(Stage write, PrintStream out) throws InterruptedException {
+        Map<Integer, Item> waiting = new HashMap<>();
+        int next = 0, failed = 0;
+        for(Item item = write.take(); item != END; item = write.take()) {
+            long start = System.nanoTime();
+            waiting.put(item.index, item);
+            for(Item ready = waiting.remove(next); ready != null; ready = waiting.remove(next)) {
+                if(ready.failure != null)
+                    failed++;
+                else if(failed == 0)
+                    out.print(ready.answers);
+                next++;
+            }
+            write.worked(start);
+        }
+        if(failed > 0) {
+            System.err.println(failed + " stories failed, so the answers stop before the first of them");
+            out.flush();
+            return false;
+        }
+        // matches the blank line System.out.println left after the last story
+        out.println();
+        out.flush();
+        return true;
+    }
+
+    /**
+     * @return The stages of the last run
+     */
+    public List<Stage> stages() {
+        return stages;
+    }
+
+    /**
+     * @return A table of how busy each stage was during the last run and how deep the queue in front of it got
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %8s %8s %12s %10s %12s%n",
+                "stage", "threads", "stories", "utilization", "max queue", "mean queue"));
+        for(Stage stage : stages) {
+            report.append(String.format("%-10s %8d %8d %11.1f%% %10d %12.2f%n", stage.name, stage.threads,
+                    stage.items(), 100 * stage.utilization(elapsedNanos), stage.maxDepth(), stage.averageDepth()));
+        }
+        if(journal != null)
+            report.append(String.format("%d stories resumed from the journal%n", resumed));
+        report.append(String.format("%.1f s in total%n", elapsedNanos / 1e9));
+        return report.toString();
+    }
+}
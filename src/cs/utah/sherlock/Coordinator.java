@@ -0,0 +1,279 @@
+package cs.utah.sherlock;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Answers the questions in a manifest by splitting it into shards and running a separate {@link Driver} JVM on each
+ * one. Each worker needs a much smaller heap than one JVM doing everything, and the answers are merged back together in
+ * manifest order, so the output is the same as a single process run.
+ * @author Tobin Yehle
+ */
+public class Coordinator {
+    /**
+     * One contiguous piece of the manifest and the files its worker reads and writes.
+     */
+    private static class Shard {
+        final int index;
+        final List<String> ids;
+        final File manifest, output, log, journal;
+        volatile Process process;
+        volatile int attempts;
+        volatile boolean succeeded;
+
+        Shard(int index, List<String> ids, File directory) {
+            this.index = index;
+            this.ids = ids;
+            this.manifest = new File(directory, "shard-" + index + "-manifest");
+            this.output = new File(directory, "shard-" + index + "-answers");
+            this.log = new File(directory, "shard-" + index + ".log");
+            this.journal = new File(directory, "shard-" + index + ".journal");
+        }
+    }
+
+    private final int workers;
+    private final int retries;
+    private final List<String> jvmOptions;
+    private final List<String> driverOptions;
+
+    /**
+     * @param workers The number of shards, and so the number of worker JVMs
+     * @param retries The number of times to rerun a shard that fails
+     * @param jvmOptions Options for each worker JVM, ie. -Xmx3g
+     * @param driverOptions Options passed on to each worker's {@link Driver}
+     */
+    public Coordinator(int workers, int retries, List<String> jvmOptions, List<String> driverOptions) {
+        this.workers = workers;
+        this.retries = retries;
+        this.jvmOptions = jvmOptions;
+        this.driverOptions = driverOptions;
+    }
+
+    /**
+     * Splits a list of story IDs into contiguous pieces of nearly equal size, so concatenating the pieces in order
+     * gives back the original list.
+     * @param ids The story IDs
+     * @param count The number of pieces
+     * @return The non empty pieces
+     */
+    public static List<List<String>> split(List<String> ids, int count) {
+        List<List<String>> shards = new ArrayList<>();
+        int start = 0;
+        for(int i = 0; i < count; i++) {
+            int end = start + (ids.size() - start) / (count - i);
+            if(end > start)
+                shards.add(new ArrayList<>(ids.subList(start, end)));
+            start = end;
+        }
+        return shards;
+    }
+
+    /**
+     * Answers all the questions about the stories in a manifest.
+     * @param directory The directory the stories are in, as returned by {@link Driver#readManifestFile}
+     * @param ids The IDs of the stories
+     * @param out Where to write the merged answers
+     * @return True if every shard succeeded and the answers were written
+     */
+    public boolean run(String directory, List<String> ids, PrintStream out) throws IOException, InterruptedException {
+        Path workDirectory = Files.createTempDirectory("sherlock-shards");
+
+        List<Shard> shards = new ArrayList<>();
+        for(List<String> piece : split(ids, workers)) {
+            Shard shard = new Shard(shards.size(), piece, workDirectory.toFile());
+            writeManifest(shard.manifest, directory, piece);
+            shards.add(shard);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for(Shard shard : shards) {
+            Thread thread = new Thread(() -> runShard(shard), "sherlock-shard-" + shard.index);
+            thread.start();
+            threads.add(thread);
+        }
+
+        try {
+            for(Thread thread : threads) {
+                while(thread.isAlive()) {
+                    thread.join(5000);
+                    reportProgress(shards);
+                }
+            }
+        } finally {
+            // don't leave workers running if the coordinator is interrupted
+            for(Shard shard : shards) {
+                Process process = shard.process;
+                if(process != null)
+                    process.destroy();
+            }
+        }
+
+        for(Shard shard : shards) {
+            if(!shard.succeeded) {
+                System.err.println("Shard " + shard.index + " failed after " + shard.attempts +
+                        " attempts, see " + shard.log);
+                return false;
+            }
+        }
+
+        merge(shards, out);
+
+        for(Shard shard : shards) {
+            Files.deleteIfExists(shard.manifest.toPath());
+            Files.deleteIfExists(shard.output.toPath());
+            Files.deleteIfExists(shard.log.toPath());
+            Files.deleteIfExists(shard.journal.toPath());
+        }
+        Files.deleteIfExists(workDirectory);
+        return true;
+    }
+
+    /**
+     * Runs the worker for a shard until it succeeds or runs out of retries.
+     */
+    private void runShard(Shard shard) {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Driver.class.getName());
+        command.addAll(driverOptions);
+        // a retry only has to answer the stories the failed attempt did not finish
+        command.add("--journal=" + shard.journal.getPath());
+        command.add("--resume");
+        command.add(shard.manifest.getPath());
+
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectOutput(shard.output)
+                .redirectError(ProcessBuilder.Redirect.appendTo(shard.log));
+
+        while(!shard.succeeded && shard.attempts <= retries) {
+            shard.attempts++;
+            try {
+                shard.process = builder.start();
+                int status = shard.process.waitFor();
+                shard.succeeded = status == 0 && isComplete(shard.output);
+                if(!shard.succeeded)
+                    System.err.println("Shard " + shard.index + " failed on attempt " + shard.attempts +
+                            " with status " + status);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                shard.process.destroy();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A worker's output is complete when it ends with the blank line {@link Driver} writes after the last story.
+     */
+    private static boolean isComplete(File output) throws IOException {
+        if(output.length() == 0)
+            return false;
+        try(RandomAccessFile file = new RandomAccessFile(output, "r")) {
+            file.seek(file.length() - 1);
+            return file.read() == '\n';
+        }
+    }
+
+    /**
+     * Writes the answers from each shard in order. Each worker ends its output with an extra newline, so that is
+     * dropped from all of them and written once at the end, just as a single {@link Driver} would.
+     */
+    private static void merge(List<Shard> shards, PrintStream out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        for(Shard shard : shards) {
+            long remaining = shard.output.length() - 1;
+            try(InputStream in = new FileInputStream(shard.output)) {
+                while(remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if(read < 0)
+                        throw new EOFException("Answers for shard " + shard.index + " were truncated");
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+        out.println();
+        out.flush();
+    }
+
+    private static void writeManifest(File manifest, String directory, List<String> ids) throws IOException {
+        try(PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(manifest), StandardCharsets.UTF_8))) {
+            out.println(directory);
+            for(String id : ids)
+                out.println(id);
+        }
+    }
+
+    /**
+     * Prints how many questions each shard has answered so far.
+     */
+    private static void reportProgress(List<Shard> shards) {
+        StringBuilder report = new StringBuilder("progress:");
+        for(Shard shard : shards) {
+            report.append(" [").append(shard.index).append("] ");
+            if(shard.succeeded)
+                report.append("done");
+            else
+                report.append(countAnswers(shard.output)).append(" answers, attempt ").append(shard.attempts);
+        }
+        System.err.println(report);
+    }
+
+    private static int countAnswers(File output) {
+        int count = 0;
+        try(BufferedReader in = new BufferedReader(new FileReader(output))) {
+            for(String line = in.readLine(); line != null; line = in.readLine()) {
+                if(line.startsWith("QuestionID: "))
+                    count++;
+            }
+        } catch (IOException e) {
+            // the worker has not started writing yet
+        }
+        return count;
+    }
+
+    /**
+     * Runs a sharded batch.
+     * @param args The manifest file. --workers=N sets the number of worker JVMs, --retries=N the number of times to
+     *             rerun a failed shard, and --jvm=OPTION adds an option to each worker JVM, ie. --jvm=-Xmx3g. Any other
+     *             option is passed on to {@link Driver}.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> files = new ArrayList<>();
+        List<String> jvmOptions = new ArrayList<>();
+        List<String> driverOptions = new ArrayList<>();
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int retries = 2;
+        for(String arg : args) {
+            if(arg.startsWith("--workers="))
+                workers = Integer.parseInt(arg.substring("--workers=".length()));
+            else if(arg.startsWith("--retries="))
+                retries = Integer.parseInt(arg.substring("--retries=".length()));
+            else if(arg.startsWith("--jvm="))
+                jvmOptions.add(arg.substring("--jvm=".length()));
+            else if(arg.startsWith("--"))
+                driverOptions.add(arg);
+            else
+                files.add(arg);
+        }
+
+        if(files.size() != 1) {
+            System.err.println("Expected one manifest file");
+            System.exit(1);
+        }
+
+        List<String> storyIDs = Driver.readManifestFile(files.get(0));
+        String directory = storyIDs.remove(0);
+
+        boolean succeeded = new Coordinator(workers, retries, jvmOptions, driverOptions).run(directory, storyIDs, System.out);
+        if(!succeeded)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,201 @@
+package cs.utah.sherlock;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Keeps prepared documents around so a story that is asked about again does not have to be annotated again. Entries
+ * are keyed by a hash of the story text and the least recently used ones are dropped once the estimated size of the
+ * cache goes over its budget. When several threads ask for the same story at once it is only annotated once, and the
+ * others wait for that result.
+ *
+ * A cache holds documents prepared by one {@link Sherlock}, so it should not be shared by instances that find
+ * co-referent mentions differently.
+ * @author Tobin Yehle
+ */
+public class DocumentCache {
+    private static class Entry {
+        final PreparedDocument document;
+        final long bytes;
+
+        Entry(PreparedDocument document, long bytes) {
+            this.document = document;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long byteBudget;
+    // in access order, so the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<PreparedDocument>> loading = new HashMap<>();
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param byteBudget The most bytes of documents to keep, going by {@link PreparedDocument#estimatedBytes}
+     */
+    public DocumentCache(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * Gets the prepared document for some text, preparing it if it is not cached.
+     * @param text The text of the story
+     * @param loader Prepares the document for the text when it is not in the cache
+     * @return The prepared document
+     */
+    public PreparedDocument get(String text, Function<String, PreparedDocument> loader) {
+        String key = hash(text);
+
+        CompletableFuture<PreparedDocument> future;
+        boolean owner = false;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if(entry != null) {
+                hits.incrementAndGet();
+                return entry.document;
+            }
+
+            future = loading.get(key);
+            if(future == null) {
+                future = new CompletableFuture<>();
+                loading.put(key, future);
+                owner = true;
+                misses.incrementAndGet();
+            }
+            else {
+                waits.incrementAndGet();
+            }
+        }
+
+        if(!owner) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if(e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw e;
+            }
+        }
+
+        try {
+            PreparedDocument document = loader.apply(text);
+            // every request for this text gets this same object, whether or not it fits in the cache
+            document.shared = true;
+            synchronized (this) {
+                add(key, document);
+                loading.remove(key);
+            }
+            future.complete(document);
+            return document;
+        } catch (Throwable e) {
+            // even an Error has to be handed on, or every later request for this text waits forever
+            synchronized (this) {
+                loading.remove(key);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a document and evicts the least recently used ones until the cache is back under budget.
+     */
+    private void add(String key, PreparedDocument document) {
+        long size = document.estimatedBytes();
+        // a document bigger than the whole budget would only push everything else out and then be evicted itself
+        if(size > byteBudget)
+            return;
+
+        Entry previous = entries.put(key, new Entry(document, size));
+        if(previous != null)
+            bytes -= previous.bytes;
+        bytes += size;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while(bytes > byteBudget && eldest.hasNext()) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops every cached document.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(2 * digest.length);
+            for(byte b : digest)
+                key.append(String.format("%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The number of requests answered from the cache
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of requests that had to prepare the document
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of requests that waited for another thread to prepare the same document
+     */
+    public long waits() {
+        return waits.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The estimated number of bytes the cached documents take up
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long byteBudget() {
+        return byteBudget;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("document cache: %d hits, %d misses, %d waits, %d evictions, %d documents in %.1f of %.1f MB",
+                hits(), misses(), waits(), evictions(), size(), bytes() / 1e6, byteBudget / 1e6);
+    }
+}
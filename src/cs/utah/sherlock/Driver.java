@@ -1,10 +1,11 @@
 package cs.utah.sherlock;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Tobin Yehle
@@ -13,75 +14,118 @@ import java.util.stream.Collectors;
 public class Driver {
     /**
      * Parses a single question file
-     * @param questionFile The name of the file containing questions
+     * @param questionFile The name of the file containing questions, which may be gzipped with a .gz on the end
      * @return A list of question objects
      */
     public static List<Story.Question> readQuestions(String questionFile, boolean hasAnswers) {
+        try (Scanner in = openFile(questionFile)) {
+            return readQuestions(in, hasAnswers);
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Parses the questions in a question file
+     * @param in The contents of the file
+     * @param hasAnswers True if it is an answers file
+     * @return A list of question objects
+     */
+    static List<Story.Question> readQuestions(Scanner in, boolean hasAnswers) {
         ArrayList<Story.Question> questions = new ArrayList<>();
-        try (Scanner in  = new Scanner(new File(questionFile))) {
-            while(in.hasNextLine()) {
-                String id = in.nextLine().split("\\s*:\\s*", -1)[1];
+        while(in.hasNextLine()) {
+            String id = in.nextLine().split("\\s*:\\s*", -1)[1];
 
-                String question = in.nextLine().split("\\s*:\\s*", -1)[1];
+            String question = in.nextLine().split("\\s*:\\s*", -1)[1];
 
-                String answer = hasAnswers ? in.nextLine().split("\\s*:\\s*", -1)[1] : null;
+            String answer = hasAnswers ? in.nextLine().split("\\s*:\\s*", -1)[1] : null;
 
-                int difficulty = in.nextLine().split("\\s*:\\s*", -1)[1].equals("Easy") ? 0 : 1;
+            int difficulty = in.nextLine().split("\\s*:\\s*", -1)[1].equals("Easy") ? 0 : 1;
 
-                questions.add(new Story.Question(id, question, difficulty, answer));
+            questions.add(new Story.Question(id, question, difficulty, answer));
 
-                in.skip("\\n");
-            }
-        }
-        catch (FileNotFoundException e) {
-            System.err.println(e.getMessage());
+            in.skip("\\n");
         }
         return questions;
     }
 
     /**
      * Reads a story given a story ID. This function expects there to be a .story file and possibly a .answers file.
+     * Each file may instead be gzipped, with a .gz on the end.
      * @param baseName The first part of the path to the files.
      * @return A story object containing all the information about the story
      */
     public static Story readStory(String baseName) {
-        try (Scanner in  = new Scanner(new File(baseName+".story"))) {
-            String headline = in.nextLine().split("\\s*:\\s*", -1)[1];
-            String date = in.nextLine().split("\\s*:\\s*", -1)[1];
-            String id = in.nextLine().split("\\s*:\\s*", -1)[1];
-
-            in.skip("\\n");
-            in.skip("TEXT:\\n");
-            in.skip("\\n");
-
-            StringBuilder textBuilder = new StringBuilder();
-            while(in.hasNextLine()) {
-                textBuilder.append(in.nextLine());
-                textBuilder.append(" ");
-            }
-
-            boolean answersExists = new File(baseName+".answers").exists();
-
-            List<Story.Question> questions = answersExists ?
+        try (Scanner in = openFile(baseName+".story")) {
+            List<Story.Question> questions = exists(baseName+".answers") ?
                     readQuestions(baseName+".answers", true) :
                     readQuestions(baseName+".questions", false);
 
-            return new Story(headline, date, id, textBuilder.toString(), questions);
+            return readStory(in, questions);
         }
-        catch (FileNotFoundException e) {
+        catch (IOException e) {
             System.err.println(e.getMessage());
             return null;
         }
     }
 
     /**
-     * Reads a number of stories from disk.
-     * @param prefix The prefix path to all the files.
+     * Parses a story file
+     * @param in The contents of the .story file
+     * @param questions The questions about the story
+     * @return A story object containing all the information about the story
+     */
+    static Story readStory(Scanner in, List<Story.Question> questions) {
+        String headline = in.nextLine().split("\\s*:\\s*", -1)[1];
+        String date = in.nextLine().split("\\s*:\\s*", -1)[1];
+        String id = in.nextLine().split("\\s*:\\s*", -1)[1];
+
+        in.skip("\\n");
+        in.skip("TEXT:\\n");
+        in.skip("\\n");
+
+        StringBuilder textBuilder = new StringBuilder();
+        while(in.hasNextLine()) {
+            textBuilder.append(in.nextLine());
+            textBuilder.append(" ");
+        }
+
+        return new Story(headline, date, id, textBuilder.toString(), questions);
+    }
+
+    /**
+     * Opens a file, or the gzipped copy of it if only that exists.
+     * @param fileName The name of the file, without the .gz
+     * @return A scanner over the contents of the file
+     */
+    private static Scanner openFile(String fileName) throws IOException {
+        File file = new File(fileName);
+        File gzipped = new File(fileName + ".gz");
+        if(!file.exists() && gzipped.exists())
+            return new Scanner(new GZIPInputStream(new FileInputStream(gzipped), 1 << 16));
+        return new Scanner(file);
+    }
+
+    private static boolean exists(String fileName) {
+        return new File(fileName).exists() || new File(fileName + ".gz").exists();
+    }
+
+    /**
+     * Reads a number of stories, from a directory or from an archive.
+     * @param prefix The prefix path to all the files, as returned by {@link #readManifestFile}
      * @param ids A list of story IDs
      * @return A list of story objects
      */
     public static List<Story> readStories(String prefix, List<String> ids) {
-        return ids.stream().map(id -> readStory(prefix + id)).collect(Collectors.toList());
+        try(StorySource source = StorySource.open(prefix, ids)) {
+            return ids.stream().map(source::read).collect(Collectors.toList());
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return ids.stream().map(id -> (Story) null).collect(Collectors.toList());
+        }
     }
 
     /**
@@ -110,9 +154,17 @@ public class Driver {
      * @return A string that matches the output specification for this story
      */
     public static String answerQuestions(Story story, Sherlock sherlock){
-        StringBuilder answers = new StringBuilder();
+        return formatAnswers(story, sherlock.processStory(story));
+    }
 
-        Map<Story.Question, String> answerKey = sherlock.processStory(story);
+    /**
+     * Formats the answers to the questions about a story.
+     * @param story The story the questions are about
+     * @param answerKey The answer to each question
+     * @return A string that matches the output specification for this story
+     */
+    public static String formatAnswers(Story story, Map<Story.Question, String> answerKey) {
+        StringBuilder answers = new StringBuilder();
 
         for(Story.Question question : story.questions) {
             String answer = answerKey.get(question);
@@ -126,13 +178,14 @@ public class Driver {
     /**
      * Finds answers to all the questions about a number of stories.
      * @param stories The list of stories to answer questions about.
+     * @param coref How to find co-referent mentions
      * @return A string matching the output specification for answers to questions
      */
-    public static String generateAnswers(List<Story> stories) {
+    public static String generateAnswers(List<Story> stories, Sherlock.Coref coref) {
         StringBuilder answers = new StringBuilder();
         Sherlock sherlock = null;
         try {
-            sherlock = new Sherlock("stop-words.txt");
+            sherlock = new Sherlock("stop-words.txt", coref);
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         }
@@ -146,24 +199,142 @@ public class Driver {
 
     /**
      * Main entry point for the QA system.
-     * @param args Should contain the name of a manifest file specifying a set of questions to answer
+     * @param args Should contain the name of a manifest file specifying a set of questions to answer. The option
+     *             --coref=dcoref|pronouns|none picks how co-referent mentions are found, and --no-coref is the same
+     *             as --coref=none. --annotators=N and --scorers=N set the number of threads annotating stories and
+     *             answering questions, and --queue=N sets how many stories can wait between each stage.
+     *             --document-cache=MB keeps up to that many megabytes of prepared documents, so repeated stories are
+     *             only annotated once. --question-cache keeps the plans of questions that have been seen before,
+     *             and --question-cache=FILE also loads them from and saves them to a file.
      */
     public static void main(String[] args) {
-        if(args.length < 1) {
+        List<String> files = new ArrayList<>();
+        Sherlock.Coref coref = Sherlock.Coref.DCOREF;
+        int annotators = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        int scorers = 1;
+        int queue = 4;
+        long documentCacheBytes = 0;
+        boolean cacheQuestions = false;
+        String questionCacheFile = null;
+        long memoryBudgetBytes = 0;
+        double[] memoryModel = null;
+        String warmUpManifest = null;
+        String journalFile = null;
+        boolean resume = false;
+        boolean ruleStats = false;
+        String rulesFile = null;
+        boolean bounding = true;
+        Scorer.Pruning pruning = Scorer.Pruning.OFF;
+        for(String arg : args) {
+            if(arg.equals("--no-coref"))
+                coref = Sherlock.Coref.NONE;
+            else if(arg.startsWith("--coref="))
+                coref = Sherlock.Coref.valueOf(arg.substring("--coref=".length()).toUpperCase());
+            else if(arg.startsWith("--annotators="))
+                annotators = Integer.parseInt(arg.substring("--annotators=".length()));
+            else if(arg.startsWith("--scorers="))
+                scorers = Integer.parseInt(arg.substring("--scorers=".length()));
+            else if(arg.startsWith("--queue="))
+                queue = Integer.parseInt(arg.substring("--queue=".length()));
+            else if(arg.startsWith("--document-cache="))
+                documentCacheBytes = (long) (Double.parseDouble(arg.substring("--document-cache=".length())) * 1e6);
+            else if(arg.equals("--question-cache"))
+                cacheQuestions = true;
+            else if(arg.startsWith("--question-cache=")) {
+                cacheQuestions = true;
+                questionCacheFile = arg.substring("--question-cache=".length());
+            }
+            else if(arg.startsWith("--journal="))
+                journalFile = arg.substring("--journal=".length());
+            else if(arg.equals("--resume"))
+                resume = true;
+            else if(arg.startsWith("--rules="))
+                rulesFile = arg.substring("--rules=".length());
+            else if(arg.equals("--no-bound"))
+                bounding = false;
+            else if(arg.equals("--rule-stats"))
+                ruleStats = true;
+            else if(arg.startsWith("--prune="))
+                pruning = Scorer.Pruning.valueOf(arg.substring("--prune=".length()).toUpperCase().replace('-', '_'));
+            else if(arg.equals("--warmup"))
+                warmUpManifest = "tiny-manifest";
+            else if(arg.startsWith("--warmup="))
+                warmUpManifest = arg.substring("--warmup=".length());
+            else if(arg.startsWith("--memory-budget="))
+                memoryBudgetBytes = (long) (Double.parseDouble(arg.substring("--memory-budget=".length())) * 1e6);
+            else if(arg.startsWith("--memory-model="))
+                memoryModel = Arrays.stream(arg.substring("--memory-model=".length()).split(","))
+                                    .mapToDouble(Double::parseDouble).toArray();
+            else if(arg.startsWith("--"))
+                System.err.println("WARNING: Unknown option " + arg + " was ignored.");
+            else
+                files.add(arg);
+        }
+
+        if(files.size() < 1) {
             System.err.println("Expected input file");
             System.exit(1);
         }
 
-        if(args.length > 1) {
+        if(files.size() > 1) {
             System.err.println("WARNING: More than one input file. Only the first file will be read.");
         }
 
-        List<String> storyIDs = readManifestFile(args[0]);
+        if(resume && journalFile == null)
+            journalFile = files.get(0) + ".journal";
+
+        List<String> storyIDs = readManifestFile(files.get(0));
         String directory = storyIDs.remove(0);
 
-        List<Story> stories = readStories(directory, storyIDs);
+        try {
+            Sherlock sherlock = new Sherlock("stop-words.txt", coref);
+            if(rulesFile != null)
+                sherlock.setRules(RuleSet.load(rulesFile));
+            // warm up before the caches are set, so the samples do not end up in them or in their counts
+            if(warmUpManifest != null)
+                WarmUp.fromManifest(sherlock, warmUpManifest).run();
+            if(documentCacheBytes > 0)
+                sherlock.setDocumentCache(new DocumentCache(documentCacheBytes));
+            if(cacheQuestions)
+                sherlock.setQuestionCache(questionCacheFile == null ? new QuestionCache() : new QuestionCache(new File(questionCacheFile)));
+            if(memoryBudgetBytes > 0) {
+                MemoryBudget budget = new MemoryBudget(memoryBudgetBytes);
+                if(memoryModel != null)
+                    budget.setModel(memoryModel[0], memoryModel[1], memoryModel[2]);
+                sherlock.setMemoryBudget(budget);
+            }
 
-        System.out.println(generateAnswers(stories));
+            if(ruleStats)
+                sherlock.setRuleStats(new RuleStats(sherlock.getRules()));
+            sherlock.setPruning(pruning);
+            sherlock.getScorer().setBounding(bounding);
+
+            BatchPipeline pipeline = new BatchPipeline(sherlock, annotators, scorers, queue);
+            Journal journal = journalFile == null ? null : new Journal(new File(journalFile), resume);
+            pipeline.setJournal(journal);
+            boolean succeeded = pipeline.run(directory, storyIDs, System.out);
+            if(journal != null)
+                journal.close();
+            System.err.print(pipeline.report());
+            if(sherlock.getDocumentCache() != null)
+                System.err.println(sherlock.getDocumentCache());
+            if(pruning != Scorer.Pruning.OFF)
+                System.err.printf("pruned %d of %d sentences for who, where, when and how much questions%n",
+                        sherlock.getScorer().prunedSentences(), sherlock.getScorer().prunableSentences());
+            if(sherlock.getRuleStats() != null)
+                System.err.print(sherlock.getRuleStats().report());
+            if(sherlock.getMemoryBudget() != null)
+                System.err.println(sherlock.getMemoryBudget());
+            if(sherlock.getQuestionCache() != null) {
+                sherlock.getQuestionCache().save();
+                System.err.println(sherlock.getQuestionCache());
+            }
+            if(!succeeded)
+                System.exit(1);
+        } catch (IOException | ClassNotFoundException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
 //        alphabetizeManifest("developset-manifest");
     }
 }
@@ -0,0 +1,118 @@
+package cs.utah.sherlock;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the answers to each story on disk as soon as they are found, so a batch run that dies part way through can
+ * pick up where it left off. Each record is the story ID and the length of its answers on one line, then the answers.
+ * Records are forced to disk before {@link #append} returns, and a record that was only partly written when the run
+ * died is dropped when the journal is opened again.
+ * @author Tobin Yehle
+ */
+public class Journal implements Closeable {
+    private final FileChannel channel;
+    private final Map<String, String> answers = new HashMap<>();
+
+    /**
+     * @param file The journal file
+     * @param resume True to keep the stories already in the file, false to start over
+     */
+    public Journal(File file, boolean resume) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        channel.truncate(resume ? read(file) : 0);
+        channel.position(channel.size());
+    }
+
+    /**
+     * Reads the complete records in a journal.
+     * @return The length in bytes of the complete records
+     */
+    private long read(File file) throws IOException {
+        long valid = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while(true) {
+                String header = readLine(in);
+                if(header == null)
+                    break;
+                String[] idLength = header.split("\t");
+                if(idLength.length != 2)
+                    break;
+
+                byte[] body;
+                try {
+                    body = new byte[Integer.parseInt(idLength[1])];
+                    in.readFully(body);
+                } catch (NumberFormatException | EOFException e) {
+                    break;
+                }
+                answers.put(idLength[0], new String(body, StandardCharsets.UTF_8));
+                valid += header.getBytes(StandardCharsets.UTF_8).length + 1 + body.length;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Reads a line ending in a newline, or returns null if the stream ends first.
+     */
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for(int b = in.read(); b != '\n'; b = in.read()) {
+            if(b < 0)
+                return null;
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param id The ID of a story
+     * @return True if the answers to the story are in the journal
+     */
+    public synchronized boolean contains(String id) {
+        return answers.containsKey(id);
+    }
+
+    /**
+     * @param id The ID of a story
+     * @return The answers to the story, or null if they are not in the journal
+     */
+    public synchronized String get(String id) {
+        return answers.get(id);
+    }
+
+    /**
+     * @return The number of stories in the journal
+     */
+    public synchronized int size() {
+        return answers.size();
+    }
+
+    /**
+     * Writes the answers to a story and waits for them to reach the disk.
+     * @param id The ID of the story
+     * @param storyAnswers The formatted answers
+     */
+    public synchronized void append(String id, String storyAnswers) throws IOException {
+        byte[] body = storyAnswers.getBytes(StandardCharsets.UTF_8);
+        byte[] header = (id + "\t" + body.length + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(header.length + body.length);
+        record.put(header).put(body).flip();
+        while(record.hasRemaining())
+            channel.write(record);
+        channel.force(false);
+        answers.put(id, storyAnswers);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,227 @@
+package cs.utah.sherlock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the stories being annotated at once from needing more heap than there is. Before a story is annotated its
+ * working set is estimated from the number of tokens in it and the length of its longest sentence, since the parser's
+ * charts grow with the square of the sentence length, and that much is reserved against a fixed budget. Stories that do
+ * not fit yet wait for others to finish, and stories that could never fit are rejected.
+ *
+ * The estimate is a linear model whose coefficients can be fit to measured heap use with
+ * {@code bench.MemoryCalibration}.
+ * @author Tobin Yehle
+ */
+public class MemoryBudget {
+    /**
+     * Heap reserved for one story, which is given back when it is closed.
+     */
+    public class Reservation implements AutoCloseable {
+        public final long bytes;
+        private boolean released;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            synchronized (MemoryBudget.this) {
+                if(released)
+                    return;
+                released = true;
+                reserved -= bytes;
+                inFlight--;
+                MemoryBudget.this.notifyAll();
+            }
+        }
+    }
+
+    private final long budgetBytes;
+
+    // rough starting points, meant to be replaced by a fit to measurements from the machine that runs the service
+    private double baseBytes = 2e6;
+    private double bytesPerToken = 1e4;
+    private double bytesPerParseCell = 1.2e5;
+
+    private long reserved;
+    private int inFlight;
+    private int waiting;
+    private long peakReserved;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param budgetBytes The most heap to let annotations reserve at once
+     */
+    public MemoryBudget(long budgetBytes) {
+        if(budgetBytes <= 0)
+            throw new IllegalArgumentException("The memory budget must be positive");
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Sets the coefficients of the estimate.
+     * @param baseBytes The heap any story needs
+     * @param bytesPerToken The heap each token needs
+     * @param bytesPerParseCell The heap each cell of the parse chart of the longest sentence needs, which is multiplied
+     *                          by the square of its length. Only used when stories are parsed.
+     */
+    public synchronized void setModel(double baseBytes, double bytesPerToken, double bytesPerParseCell) {
+        this.baseBytes = baseBytes;
+        this.bytesPerToken = bytesPerToken;
+        this.bytesPerParseCell = bytesPerParseCell;
+    }
+
+    /**
+     * Estimates how much heap annotating some text will need.
+     * @param text The text to annotate
+     * @param parsed If the sentences will be parsed
+     * @return The estimated working set in bytes
+     */
+    public synchronized long estimate(String text, boolean parsed) {
+        long longest = longestSentence(text);
+        double bytes = baseBytes + bytesPerToken * countTokens(text);
+        if(parsed)
+            bytes += bytesPerParseCell * longest * longest;
+        return (long) bytes;
+    }
+
+    /**
+     * Counts the tokens in some text roughly, as runs of letters and digits and single punctuation marks.
+     * @param text The text
+     * @return The approximate number of tokens
+     */
+    public static int countTokens(String text) {
+        int tokens = 0;
+        boolean inWord = false;
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(Character.isLetterOrDigit(c) || c == '\'') {
+                if(!inWord)
+                    tokens++;
+                inWord = true;
+            }
+            else {
+                if(!Character.isWhitespace(c))
+                    tokens++;
+                inWord = false;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Finds the number of tokens in the longest sentence of some text, splitting sentences at end of sentence
+     * punctuation.
+     * @param text The text
+     * @return The approximate length of the longest sentence
+     */
+    public static int longestSentence(String text) {
+        int longest = 0;
+        int start = 0;
+        for(int i = 0; i <= text.length(); i++) {
+            if(i == text.length() || text.charAt(i) == '.' || text.charAt(i) == '!' || text.charAt(i) == '?') {
+                longest = Math.max(longest, countTokens(text.substring(start, Math.min(text.length(), i + 1))));
+                start = i + 1;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Reserves the heap to annotate some text, waiting for other stories to finish if it does not fit yet.
+     * @param text The text to annotate
+     * @param parsed If the sentences will be parsed
+     * @return The reservation, to close once the annotation is done
+     * @throws IllegalArgumentException If the text needs more than the whole budget
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public Reservation reserve(String text, boolean parsed) throws InterruptedException {
+        long bytes = estimate(text, parsed);
+        if(bytes > budgetBytes) {
+            rejected.incrementAndGet();
+            throw new IllegalArgumentException(String.format(
+                    "Annotating this story needs about %.1f MB (%d tokens, longest sentence %d), but the memory " +
+                    "budget is only %.1f MB", bytes / 1e6, countTokens(text), longestSentence(text), budgetBytes / 1e6));
+        }
+
+        synchronized (this) {
+            if(reserved + bytes > budgetBytes) {
+                long start = System.nanoTime();
+                waited.incrementAndGet();
+                waiting++;
+                try {
+                    while(reserved + bytes > budgetBytes)
+                        wait();
+                } finally {
+                    waiting--;
+                    waitNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+            reserved += bytes;
+            inFlight++;
+            peakReserved = Math.max(peakReserved, reserved);
+        }
+        admitted.incrementAndGet();
+        return new Reservation(bytes);
+    }
+
+    public long budget() {
+        return budgetBytes;
+    }
+
+    /**
+     * @return The bytes reserved by stories being annotated right now
+     */
+    public synchronized long reserved() {
+        return reserved;
+    }
+
+    /**
+     * @return The number of stories being annotated right now
+     */
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return The number of stories waiting for room right now
+     */
+    public synchronized int waiting() {
+        return waiting;
+    }
+
+    /**
+     * @return The most bytes that were ever reserved at once
+     */
+    public synchronized long peakReserved() {
+        return peakReserved;
+    }
+
+    public long admitted() {
+        return admitted.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return The number of stories that had to wait for room
+     */
+    public long waited() {
+        return waited.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("memory budget: %.1f of %.1f MB reserved by %d stories (peak %.1f MB), %d waiting, " +
+                        "%d admitted, %d waited %.1f s in total, %d rejected",
+                reserved() / 1e6, budgetBytes / 1e6, inFlight(), peakReserved() / 1e6, waiting(), admitted(),
+                waited(), waitNanos.get() / 1e9, rejected());
+    }
+}
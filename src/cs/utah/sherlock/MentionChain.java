@@ -0,0 +1,72 @@
+package cs.utah.sherlock;
+
+import edu.stanford.nlp.dcoref.CorefChain;
+
+import java.util.*;
+
+/**
+ * A set of mentions in a document that all refer to the same thing, along with the mention that best represents them.
+ * All indices are zero based and end indices are exclusive.
+ * @author Tobin Yehle
+ */
+public class MentionChain {
+    public static class Mention {
+        public final int sentence, start, end;
+
+        public Mention(int sentence, int start, int end) {
+            this.sentence = sentence;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return "Mention{" +
+                    "sentence=" + sentence +
+                    ", start=" + start +
+                    ", end=" + end +
+                    '}';
+        }
+    }
+
+    public final Mention representative;
+    public final List<Mention> mentions;
+
+    /**
+     * @param representative The mention that best represents the chain
+     * @param mentions All the mentions in the chain in textual order, including the representative
+     */
+    public MentionChain(Mention representative, List<Mention> mentions) {
+        this.representative = representative;
+        this.mentions = mentions;
+    }
+
+    /**
+     * Converts the chains found by dcoref, which use one based indices.
+     * @param chains The chains from the CorefChainAnnotation
+     * @return The same chains
+     */
+    public static List<MentionChain> fromDcoref(Map<Integer, CorefChain> chains) {
+        List<MentionChain> out = new ArrayList<>(chains.size());
+        for(CorefChain chain : chains.values()) {
+            List<Mention> mentions = new ArrayList<>();
+            for(CorefChain.CorefMention mention : chain.getMentionsInTextualOrder()) {
+                mentions.add(convert(mention));
+            }
+            out.add(new MentionChain(convert(chain.getRepresentativeMention()), mentions));
+        }
+        return out;
+    }
+
+    private static Mention convert(CorefChain.CorefMention mention) {
+        return new Mention(mention.sentNum - 1, mention.startIndex - 1, mention.endIndex - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "MentionChain{" +
+                "representative=" + representative +
+                ", mentions=" + mentions +
+                '}';
+    }
+}
@@ -0,0 +1,236 @@
+package cs.utah.sherlock;
+
+import edu.stanford.nlp.trees.Tree;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The tokens of a story along with the per sentence features the scoring rules need. Everything here is computed once
+ * when the story is annotated, so scoring a question only reads primitive arrays.
+ *
+ * Sentences can be appended to a document that keeps growing. Only one thread may append at a time, but questions can
+ * be scored against the sentences that were already there while it does.
+ * @author Tobin Yehle
+ */
+public class PreparedDocument {
+    /** The tokens of the story. Answers are rebuilt from these. */
+    public final TokenStore tokens;
+
+    private final Map<String, Integer> termIds;
+    private String[] terms;
+    private int[][] verbTerms, otherTerms;
+    private int[] entities, cues, sizes;
+    // a bit for each term id mod 64 in each sentence, so an upper bound on the terms it shares with a question is a
+    // single and
+    private long[] verbSignatures, otherSignatures;
+    private volatile int sentenceCount;
+
+    // true once the document cache has handed this document out, so other requests may hold it and it must not grow
+    volatile boolean shared;
+
+    /** The parse of each sentence, filled in as sentences are parsed */
+    private Tree[] parses;
+    final Object parseLock = new Object();
+
+    /**
+     * @param tokens The tokens of the story
+     * @param termIds Maps stemmed words to the ids used in the term arrays
+     * @param verbTerms The sorted ids of the stemmed verbs in each sentence, without stop words
+     * @param otherTerms The sorted ids of the other stemmed words in each sentence, without stop words
+     * @param entities A bit set of the named entity types in each sentence
+     * @param cues A bit set of the cue phrases in each sentence
+     * @param sizes The number of tokens in each sentence after co-referent mentions are replaced
+     */
+    public PreparedDocument(TokenStore tokens, Map<String, Integer> termIds, int[][] verbTerms, int[][] otherTerms,
+                            int[] entities, int[] cues, int[] sizes) {
+        this.tokens = tokens;
+        this.parses = new Tree[sizes.length];
+        // terms are looked up while scoring, possibly at the same time as new ones are added
+        this.termIds = new ConcurrentHashMap<>(termIds);
+        this.terms = new String[Math.max(16, termIds.size())];
+        for(Map.Entry<String, Integer> term : termIds.entrySet())
+            terms[term.getValue()] = term.getKey();
+        this.verbTerms = verbTerms;
+        this.otherTerms = otherTerms;
+        this.entities = entities;
+        this.cues = cues;
+        this.sizes = sizes;
+        this.verbSignatures = new long[sizes.length];
+        this.otherSignatures = new long[sizes.length];
+        for(int sentence = 0; sentence < sizes.length; sentence++) {
+            verbSignatures[sentence] = signature(verbTerms[sentence]);
+            otherSignatures[sentence] = signature(otherTerms[sentence]);
+        }
+        this.sentenceCount = sizes.length;
+    }
+
+    /**
+     * @param termIds Some term ids
+     * @return A bit set of the ids mod 64
+     */
+    static long signature(int[] termIds) {
+        long signature = 0;
+        for(int id : termIds)
+            signature |= 1L << id;
+        return signature;
+    }
+
+    /**
+     * Makes a document with no sentences yet, for sentences to be appended to.
+     * @param tokens The tokens of the story, which sentences are appended to first
+     */
+    PreparedDocument(TokenStore tokens) {
+        this(tokens, new HashMap<>(), new int[0][], new int[0][], new int[0], new int[0], new int[0]);
+    }
+
+    /**
+     * @return The number of sentences in the document
+     */
+    public int sentenceCount() {
+        return sentenceCount;
+    }
+
+    /**
+     * Looks up the id of a stemmed word.
+     * @param term The stemmed word
+     * @return The id of the word, or -1 if it does not appear in the document
+     */
+    public int termId(String term) {
+        Integer id = termIds.get(term);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id The id of a stemmed word in this document
+     * @return The stemmed word
+     */
+    public String term(int id) {
+        return terms[id];
+    }
+
+    public int[] verbTerms(int sentence) {
+        return verbTerms[sentence];
+    }
+
+    public int[] otherTerms(int sentence) {
+        return otherTerms[sentence];
+    }
+
+    public int entities(int sentence) {
+        return entities[sentence];
+    }
+
+    public int cues(int sentence) {
+        return cues[sentence];
+    }
+
+    /**
+     * @return A bit for each verb term id in a sentence mod 64
+     */
+    public long verbSignature(int sentence) {
+        return verbSignatures[sentence];
+    }
+
+    /**
+     * @return A bit for each other term id in a sentence mod 64
+     */
+    public long otherSignature(int sentence) {
+        return otherSignatures[sentence];
+    }
+
+    public int size(int sentence) {
+        return sizes[sentence];
+    }
+
+    /**
+     * @return The number of tokens in each sentence after co-referent mentions are replaced. In a document that has
+     *         had sentences appended this can be longer than {@link #sentenceCount()}, and only that many are used.
+     */
+    public int[] sizes() {
+        return sizes;
+    }
+
+    /**
+     * Gets the id of a stemmed word, giving it a new one if it has not been seen before. Only the thread appending to
+     * the document may call this.
+     * @param term The stemmed word
+     * @return The id of the word
+     */
+    int internTerm(String term) {
+        Integer id = termIds.get(term);
+        if(id != null)
+            return id;
+
+        int newId = termIds.size();
+        if(newId == terms.length)
+            terms = Arrays.copyOf(terms, 2 * newId);
+        terms[newId] = term;
+        termIds.put(term, newId);
+        return newId;
+    }
+
+    /**
+     * Adds a sentence to the end of the document. Only the thread appending to the document may call this.
+     * @param verbTerms The sorted ids of the stemmed verbs in the sentence, without stop words
+     * @param otherTerms The sorted ids of the other stemmed words in the sentence, without stop words
+     * @param entities A bit set of the named entity types in the sentence
+     * @param cues A bit set of the cue phrases in the sentence
+     * @param size The number of tokens in the sentence after co-referent mentions are replaced
+     */
+    void addSentence(int[] verbTerms, int[] otherTerms, int entities, int cues, int size) {
+        int sentence = sentenceCount;
+        if(sentence == sizes.length) {
+            int capacity = Math.max(16, 2 * sentence);
+            this.verbTerms = Arrays.copyOf(this.verbTerms, capacity);
+            this.otherTerms = Arrays.copyOf(this.otherTerms, capacity);
+            this.entities = Arrays.copyOf(this.entities, capacity);
+            this.cues = Arrays.copyOf(this.cues, capacity);
+            this.sizes = Arrays.copyOf(this.sizes, capacity);
+            this.verbSignatures = Arrays.copyOf(this.verbSignatures, capacity);
+            this.otherSignatures = Arrays.copyOf(this.otherSignatures, capacity);
+        }
+        this.verbTerms[sentence] = verbTerms;
+        this.otherTerms[sentence] = otherTerms;
+        this.entities[sentence] = entities;
+        this.cues[sentence] = cues;
+        this.sizes[sentence] = size;
+        this.verbSignatures[sentence] = signature(verbTerms);
+        this.otherSignatures[sentence] = signature(otherTerms);
+        // publish the sentence last so scoring never sees half of it
+        sentenceCount = sentence + 1;
+    }
+
+    /**
+     * @return The remembered parse of a sentence, or null if it has not been parsed. Hold the parse lock.
+     */
+    Tree parse(int sentence) {
+        return sentence < parses.length ? parses[sentence] : null;
+    }
+
+    /**
+     * Remembers the parse of a sentence. Hold the parse lock.
+     */
+    void setParse(int sentence, Tree parse) {
+        if(sentence >= parses.length)
+            parses = Arrays.copyOf(parses, Math.max(sentence + 1, 2 * parses.length));
+        parses[sentence] = parse;
+    }
+
+    /**
+     * @return Roughly how many bytes of heap the tokens and features of this document take up, not counting any parses
+     */
+    public long estimatedBytes() {
+        long bytes = tokens == null ? 0 : tokens.estimatedBytes();
+        // each term id is a map entry, a boxed integer and usually a short string
+        bytes += 84L * termIds.size();
+        int count = sentenceCount;
+        for(int sentence = 0; sentence < count; sentence++)
+            bytes += 32 + 4L * (verbTerms[sentence].length + otherTerms[sentence].length);
+        bytes += 7 * 16 + 4L * (entities.length + cues.length + sizes.length + parses.length) +
+                 8L * (verbSignatures.length + otherSignatures.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,195 @@
+package cs.utah.sherlock;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.util.CoreMap;
+
+import java.util.*;
+
+/**
+ * A small rule based stand in for dcoref. Names are grouped by their words, and he, she, it and they are resolved to
+ * the most recently mentioned name of a fitting type. This only needs tokens, part of speech tags and NER tags, so no
+ * sentence has to be parsed.
+ * @author Tobin Yehle
+ */
+public class PronounResolver {
+    /**
+     * All the mentions of one named thing.
+     */
+    private static class Entity {
+        final String type;
+        final List<MentionChain.Mention> mentions = new ArrayList<>();
+        MentionChain.Mention representative;
+        List<String> name;
+        int lastSentence;
+
+        Entity(String type) {
+            this.type = type;
+        }
+
+        /**
+         * Checks if a name could refer to this entity, ie. "Aucoin" and "Betty Jean Aucoin".
+         * @param type The NER type of the name
+         * @param words The lower case words in the name
+         * @return If one of the names is made up of words from the other
+         */
+        boolean matches(String type, List<String> words) {
+            return this.type.equals(type) && (name.containsAll(words) || words.containsAll(name));
+        }
+
+        void addName(MentionChain.Mention mention, List<String> words) {
+            // Use the longest name to represent the entity
+            if(representative == null || words.size() > name.size()) {
+                representative = mention;
+                name = words;
+            }
+            add(mention);
+        }
+
+        void add(MentionChain.Mention mention) {
+            mentions.add(mention);
+            lastSentence = mention.sentence;
+        }
+    }
+
+    private final int window;
+    private final Set<String> entityTypes;
+    private final Map<String, Set<String>> pronounTypes;
+    private final Set<String> beVerbs;
+
+    public PronounResolver() {
+        this(2);
+    }
+
+    /**
+     * @param window How many sentences back to look for the name a pronoun refers to
+     */
+    public PronounResolver(int window) {
+        this.window = window;
+
+        entityTypes = Util.setOf("PERSON", "ORGANIZATION", "LOCATION");
+
+        Set<String> person = Util.setOf("PERSON");
+        Set<String> thing = Util.setOf("ORGANIZATION", "LOCATION");
+        // they can be people, as in "the Smiths", or a company or country standing in for its people
+        Set<String> group = Util.setOf("PERSON", "ORGANIZATION", "LOCATION");
+        pronounTypes = new HashMap<>();
+        for(String pronoun : Util.listOf("he", "him", "his", "himself", "she", "her", "hers", "herself"))
+            pronounTypes.put(pronoun, person);
+        for(String pronoun : Util.listOf("it", "its", "itself"))
+            pronounTypes.put(pronoun, thing);
+        for(String pronoun : Util.listOf("they", "them", "their", "theirs", "themselves"))
+            pronounTypes.put(pronoun, group);
+
+        beVerbs = Util.setOf("is", "was", "'s");
+    }
+
+    /**
+     * Finds the co-referent mentions in a document.
+     * @param document A document that has been through tokenize, ssplit, pos, and ner
+     * @return The chains that contain more than one mention
+     */
+    public List<MentionChain> resolve(Annotation document) {
+        List<CoreMap> sentences = document.get(CoreAnnotations.SentencesAnnotation.class);
+
+        List<Entity> entities = new ArrayList<>();
+        // Entities ordered by when they were last mentioned, most recent last
+        List<Entity> recent = new ArrayList<>();
+
+        for(int sentenceNum = 0; sentenceNum < sentences.size(); sentenceNum++) {
+            List<CoreLabel> tokens = sentences.get(sentenceNum).get(CoreAnnotations.TokensAnnotation.class);
+
+            int tokenNum = 0;
+            while(tokenNum < tokens.size()) {
+                String ner = tokens.get(tokenNum).get(CoreAnnotations.NamedEntityTagAnnotation.class);
+
+                if(ner != null && entityTypes.contains(ner)) {
+                    // A name is a run of tokens with the same tag
+                    int end = tokenNum + 1;
+                    while(end < tokens.size() && ner.equals(tokens.get(end).get(CoreAnnotations.NamedEntityTagAnnotation.class)))
+                        end++;
+
+                    List<String> words = new ArrayList<>(end - tokenNum);
+                    for(CoreLabel token : tokens.subList(tokenNum, end))
+                        words.add(token.word().toLowerCase());
+
+                    Entity entity = findEntity(entities, ner, words);
+                    if(entity == null) {
+                        entity = new Entity(ner);
+                        entities.add(entity);
+                    }
+                    entity.addName(new MentionChain.Mention(sentenceNum, tokenNum, end), words);
+                    touch(recent, entity);
+
+                    tokenNum = end;
+                }
+                else {
+                    Set<String> types = pronounTypes.get(tokens.get(tokenNum).word().toLowerCase());
+
+                    if(types != null && !isPleonastic(tokens, tokenNum)) {
+                        Entity antecedent = findAntecedent(recent, types, sentenceNum);
+                        if(antecedent != null) {
+                            antecedent.add(new MentionChain.Mention(sentenceNum, tokenNum, tokenNum + 1));
+                            touch(recent, antecedent);
+                        }
+                    }
+
+                    tokenNum++;
+                }
+            }
+        }
+
+        List<MentionChain> chains = new ArrayList<>();
+        for(Entity entity : entities) {
+            if(entity.mentions.size() > 1)
+                chains.add(new MentionChain(entity.representative, entity.mentions));
+        }
+        return chains;
+    }
+
+    private Entity findEntity(List<Entity> entities, String type, List<String> words) {
+        for(Entity entity : entities) {
+            if(entity.matches(type, words))
+                return entity;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the most recently mentioned entity that a pronoun could refer to.
+     * @param recent The entities, most recently mentioned last
+     * @param types The NER types the pronoun can refer to
+     * @param sentenceNum The sentence the pronoun is in
+     * @return The entity, or null if nothing recent enough fits
+     */
+    private Entity findAntecedent(List<Entity> recent, Set<String> types, int sentenceNum) {
+        for(int i = recent.size() - 1; i >= 0; i--) {
+            Entity entity = recent.get(i);
+            if(entity.lastSentence < sentenceNum - window)
+                return null;
+            if(types.contains(entity.type))
+                return entity;
+        }
+        return null;
+    }
+
+    private void touch(List<Entity> recent, Entity entity) {
+        recent.remove(entity);
+        recent.add(entity);
+    }
+
+    /**
+     * Checks for an "it" that does not refer to anything, as in "it is important".
+     * @param tokens The tokens in the sentence
+     * @param index The index of the pronoun
+     * @return If the pronoun should be left alone
+     */
+    private boolean isPleonastic(List<CoreLabel> tokens, int index) {
+        if(!tokens.get(index).word().equalsIgnoreCase("it") || index + 2 >= tokens.size())
+            return false;
+
+        String tag = tokens.get(index + 2).get(CoreAnnotations.PartOfSpeechAnnotation.class);
+        return beVerbs.contains(tokens.get(index + 1).word().toLowerCase()) && tag != null && tag.startsWith("JJ");
+    }
+}
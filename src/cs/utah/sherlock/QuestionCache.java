@@ -0,0 +1,164 @@
+package cs.utah.sherlock;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Remembers the plans of questions that have been asked before, since the same questions come up again and again
+ * across stories. Questions are matched on their text with runs of white space collapsed. Case is kept, because the
+ * tagger and NER look at it. The plans can be saved to a file and loaded in later runs.
+ *
+ * The plans depend on the stop words a {@link Sherlock} was built with, so a cache should only be used with one
+ * configuration.
+ * @author Tobin Yehle
+ */
+public class QuestionCache {
+    private static final String HEADER = "# sherlock question plans v1";
+
+    private final Map<String, QuestionPlan> plans = new ConcurrentHashMap<>();
+    private final File file;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong planNanos = new AtomicLong();
+
+    /**
+     * Makes a cache that only lives in memory.
+     */
+    public QuestionCache() {
+        this.file = null;
+    }
+
+    /**
+     * Makes a cache backed by a file. Any plans already in the file are loaded.
+     * @param file The file to load plans from and save them to
+     */
+    public QuestionCache(File file) throws IOException {
+        this.file = file;
+        if(file.exists())
+            load();
+    }
+
+    /**
+     * Collapses white space so trivially different copies of a question share a plan.
+     * @param question The text of a question
+     * @return The key the question is cached under
+     */
+    public static String normalize(String question) {
+        return question.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Gets the plan for a question, working it out if it has not been seen before.
+     * @param question The text of the question
+     * @param planner Works out the plan of a question that is not cached
+     * @return The plan for the question
+     */
+    public QuestionPlan get(String question, Function<String, QuestionPlan> planner) {
+        String key = normalize(question);
+        QuestionPlan plan = plans.get(key);
+        if(plan != null) {
+            hits.incrementAndGet();
+            return plan;
+        }
+
+        // two threads may plan the same question at once, which only wastes a little work
+        long start = System.nanoTime();
+        plan = planner.apply(question);
+        planNanos.addAndGet(System.nanoTime() - start);
+        misses.incrementAndGet();
+
+        QuestionPlan previous = plans.putIfAbsent(key, plan);
+        return previous == null ? plan : previous;
+    }
+
+    /**
+     * Writes every cached plan to the backing file. Does nothing if the cache only lives in memory.
+     */
+    public void save() throws IOException {
+        if(file == null)
+            return;
+
+        // write to a temporary file first so a crash never leaves half a cache behind
+        File temporary = new File(file.getPath() + ".tmp");
+        try(PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8))) {
+            out.println(HEADER);
+            for(Map.Entry<String, QuestionPlan> entry : plans.entrySet()) {
+                QuestionPlan plan = entry.getValue();
+                out.println(entry.getKey() + "\t" + plan.type + "\t" + String.join(" ", plan.terms) + "\t" +
+                        plan.cues + "\t" + plan.entities + "\t" +
+                        (plan.answerFilter == null ? "-" : String.join(" ", new TreeSet<>(plan.answerFilter))));
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void load() throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        if(lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+            System.err.println("WARNING: " + file + " is not a question cache, so it was not loaded.");
+            return;
+        }
+
+        for(String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t", -1);
+            if(fields.length != 6) {
+                System.err.println("WARNING: Skipped a malformed line in " + file + ": " + line);
+                continue;
+            }
+
+            String[] terms = fields[2].isEmpty() ? new String[0] : fields[2].split(" ");
+            Set<String> answerFilter = fields[5].equals("-") ? null :
+                    Collections.unmodifiableSet(new HashSet<>(Arrays.asList(fields[5].split(" "))));
+            try {
+                plans.put(fields[0], new QuestionPlan(QuestionPlan.Type.valueOf(fields[1]), terms,
+                        Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), answerFilter));
+            } catch (IllegalArgumentException e) {
+                // an unknown type or a cue or entity field that is not a number
+                System.err.println("WARNING: Skipped a malformed line in " + file + ": " + line);
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The fraction of questions whose plans came from the cache
+     */
+    public double hitRate() {
+        long total = hits() + misses();
+        return total > 0 ? (double) hits() / total : 0;
+    }
+
+    /**
+     * @return The total time spent planning the questions that missed
+     */
+    public long planNanos() {
+        return planNanos.get();
+    }
+
+    public int size() {
+        return plans.size();
+    }
+
+    @Override
+    public String toString() {
+        long misses = misses();
+        double msPerPlan = misses > 0 ? planNanos() / 1e6 / misses : 0;
+        return String.format("question cache: %d hits, %d misses, %.1f%% hit rate, %d plans, %.1f s planning " +
+                        "(%.1f ms per plan, about %.1f s saved)",
+                hits(), misses, 100 * hitRate(), size(), planNanos() / 1e9, msPerPlan, hits() * msPerPlan / 1e3);
+    }
+}
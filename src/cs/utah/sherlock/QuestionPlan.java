@@ -0,0 +1,83 @@
+package cs.utah.sherlock;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Everything the scoring rules need to know about a question. This is worked out once per question, so scoring a
+ * sentence never has to look at the question's tokens again.
+ * @author Tobin Yehle
+ */
+public class QuestionPlan {
+    /**
+     * The kinds of questions there are rules for.
+     */
+    public enum Type {
+        WHAT, WHO, WHERE, WHICH, WHEN, WHY, HOW, OTHER;
+
+        /**
+         * @param askingWord The question word, ie. "who" or "whom"
+         * @return The type of question the word asks
+         */
+        public static Type of(String askingWord) {
+            switch (askingWord) {
+                case "what":
+                    return WHAT;
+                case "who":
+                case "whose":
+                case "whom":
+                    return WHO;
+                case "where":
+                    return WHERE;
+                case "which":
+                    return WHICH;
+                case "when":
+                    return WHEN;
+                case "why":
+                    return WHY;
+                case "how":
+                    return HOW;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    public final Type type;
+    /** The stemmed words in the question, without the question word or stop words */
+    public final String[] terms;
+    /** A bit set of the cue phrases in the question */
+    public final int cues;
+    /** A bit set of the named entity types in the question */
+    public final int entities;
+    /** The NER tags an answer should be made of, or null to answer with the whole sentence */
+    public final Set<String> answerFilter;
+    /** A bit set of the named entity types in the answer filter */
+    public final int answerEntities;
+
+    public QuestionPlan(Type type, String[] terms, int cues, int entities, Set<String> answerFilter) {
+        this.type = type;
+        this.terms = terms;
+        this.cues = cues;
+        this.entities = entities;
+        this.answerFilter = answerFilter;
+
+        int answerEntities = 0;
+        if(answerFilter != null) {
+            for(String tag : answerFilter)
+                answerEntities |= Scorer.entityBit(tag);
+        }
+        this.answerEntities = answerEntities;
+    }
+
+    @Override
+    public String toString() {
+        return "QuestionPlan{" +
+                "type=" + type +
+                ", terms=" + Arrays.toString(terms) +
+                ", cues=" + cues +
+                ", entities=" + entities +
+                ", answerFilter=" + answerFilter +
+                '}';
+    }
+}
@@ -0,0 +1,231 @@
+package cs.utah.sherlock;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges requests about the same story so it is only annotated once. The first request for a story text opens a batch
+ * that stays open for a short window, and every request for the same text in that window adds its questions to the
+ * batch. When the window closes the story is annotated and all of the questions are answered together, then each
+ * caller gets the answers to its own questions. Requests that arrive while the story is being annotated wait for that
+ * annotation instead of starting another one.
+ * @author Tobin Yehle
+ */
+public class RequestCoalescer {
+    /**
+     * The requests for one story text that are waiting for the window to close.
+     */
+    private static class Batch {
+        final String text;
+        final List<Story.Question> questions = new ArrayList<>();
+        final CompletableFuture<PreparedDocument> document = new CompletableFuture<>();
+        final CompletableFuture<Map<Story.Question, String>> answers = new CompletableFuture<>();
+        int requests;
+        long arrivalNanos;
+
+        Batch(String text) {
+            this.text = text;
+        }
+    }
+
+    private final Sherlock sherlock;
+    private final long windowNanos;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    private final Map<String, Batch> open = new HashMap<>();
+    private final Map<String, Batch> annotating = new HashMap<>();
+    // the answers of requests that joined an annotation, which may be queued on the workers after it finishes
+    private final Set<CompletableFuture<Map<Story.Question, String>>> answering = new HashSet<>();
+    private boolean shutdown;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong annotations = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong windowed = new AtomicLong();
+    private final AtomicLong windowNanosTotal = new AtomicLong();
+
+    /**
+     * @param sherlock The object that answers the questions
+     * @param window How long a batch stays open for more requests. Zero only merges requests that arrive while a story
+     *               is being annotated.
+     * @param unit The unit of the window
+     * @param threads The number of stories to annotate and answer at once
+     */
+    public RequestCoalescer(Sherlock sherlock, long window, TimeUnit unit, int threads) {
+        if(threads < 1 || window < 0)
+            throw new IllegalArgumentException("The coalescer needs at least one thread and a window of at least zero");
+        this.sherlock = sherlock;
+        this.windowNanos = unit.toNanos(window);
+        this.workers = Executors.newFixedThreadPool(threads, daemon("sherlock-coalesce"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemon("sherlock-coalesce-timer"));
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicLong count = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Answers the questions about a story, sharing the annotation with any other requests about the same text.
+     * @param story The story to answer questions about
+     * @return The answers to this story's questions, once they are ready, or a failed future if the coalescer has been
+     *         shut down
+     */
+    public CompletableFuture<Map<Story.Question, String>> submit(Story story) {
+        requests.incrementAndGet();
+        List<Story.Question> mine = story.questions;
+        synchronized (this) {
+            if(shutdown) {
+                CompletableFuture<Map<Story.Question, String>> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(new IllegalStateException("The coalescer has been shut down"));
+                return rejected;
+            }
+
+            Batch running = annotating.get(story.text);
+            if(running != null) {
+                joined.incrementAndGet();
+                CompletableFuture<Map<Story.Question, String>> answers =
+                        running.document.thenApplyAsync(prepared -> sherlock.answerQuestions(prepared, mine), workers);
+                answering.add(answers);
+                answers.whenComplete((done, error) -> {
+                    synchronized (this) {
+                        answering.remove(answers);
+                    }
+                });
+                return answers;
+            }
+
+            Batch batch = open.get(story.text);
+            if(batch == null) {
+                batch = new Batch(story.text);
+                open.put(story.text, batch);
+                Batch toClose = batch;
+                if(windowNanos == 0)
+                    workers.execute(() -> run(toClose));
+                else
+                    timer.schedule(() -> workers.execute(() -> run(toClose)), windowNanos, TimeUnit.NANOSECONDS);
+            }
+            else {
+                joined.incrementAndGet();
+            }
+
+            // the same question object might be sent twice, but it only needs answering once
+            for(Story.Question question : mine) {
+                if(!batch.questions.contains(question))
+                    batch.questions.add(question);
+            }
+            batch.requests++;
+            batch.arrivalNanos += System.nanoTime();
+            return batch.answers.thenApply(all -> {
+                Map<Story.Question, String> answers = new HashMap<>();
+                for(Story.Question question : mine)
+                    answers.put(question, all.get(question));
+                return answers;
+            });
+        }
+    }
+
+    /**
+     * Closes a batch, then annotates its story and answers all of its questions.
+     */
+    private void run(Batch batch) {
+        synchronized (this) {
+            // shutting down already failed the batch
+            if(shutdown)
+                return;
+            open.remove(batch.text);
+            annotating.put(batch.text, batch);
+            // how long each request in the batch sat waiting for the window to close
+            windowNanosTotal.addAndGet(batch.requests * System.nanoTime() - batch.arrivalNanos);
+            windowed.addAndGet(batch.requests);
+        }
+        annotations.incrementAndGet();
+
+        try {
+            PreparedDocument prepared = sherlock.annotate(batch.text);
+            batch.document.complete(prepared);
+            batch.answers.complete(sherlock.answerQuestions(prepared, batch.questions));
+        } catch (Throwable e) {
+            batch.document.completeExceptionally(e);
+            batch.answers.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                annotating.remove(batch.text, batch);
+            }
+        }
+    }
+
+    /**
+     * Stops the threads and stops taking requests. Every request that has not been answered yet fails with an
+     * {@link IllegalStateException}, including ones waiting for a window to close or for a story being annotated.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            IllegalStateException stopped = new IllegalStateException("The coalescer has been shut down");
+            for(Batch batch : open.values()) {
+                batch.document.completeExceptionally(stopped);
+                batch.answers.completeExceptionally(stopped);
+            }
+            for(Batch batch : annotating.values()) {
+                batch.document.completeExceptionally(stopped);
+                batch.answers.completeExceptionally(stopped);
+            }
+            // requests that joined an annotation get a failed document, unless their answering is already queued
+            for(CompletableFuture<Map<Story.Question, String>> answers : new ArrayList<>(answering))
+                answers.completeExceptionally(stopped);
+            open.clear();
+            annotating.clear();
+            answering.clear();
+        }
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of times a story was annotated
+     */
+    public long annotations() {
+        return annotations.get();
+    }
+
+    /**
+     * @return The number of requests that shared an annotation another request started
+     */
+    public long joined() {
+        return joined.get();
+    }
+
+    /**
+     * @return The number of requests per annotation
+     */
+    public double coalescingRatio() {
+        long annotations = annotations();
+        return annotations > 0 ? (double) requests() / annotations : 0;
+    }
+
+    /**
+     * @return The average time, in milliseconds, a request in a batch waited for the window to close
+     */
+    public double addedLatency() {
+        long windowed = this.windowed.get();
+        return windowed > 0 ? windowNanosTotal.get() / 1e6 / windowed : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("request coalescer: %d requests, %d annotations, %.2f requests per annotation, " +
+                "%d joined, %.2f ms added by the window", requests(), annotations(), coalescingRatio(), joined(),
+                addedLatency());
+    }
+}
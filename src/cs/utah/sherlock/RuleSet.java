@@ -0,0 +1,295 @@
+package cs.utah.sherlock;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * The scoring rules for each type of question, read from a rules file and compiled into flat arrays of feature numbers
+ * and bit masks, so checking a rule against a sentence is a couple of array loads and an and.
+ *
+ * Each line of a rules file is one rule, written as
+ * <pre>
+ *     type  question-condition  sentence-condition  points  [name]
+ * </pre>
+ * A condition is {@code *} to always hold, or a feature and the bits to look for, like {@code entity:PERSON|ORGANIZATION},
+ * which holds if any of the bits are set. A {@code !} in front negates it. The question side can look at {@code cue} and
+ * {@code entity}, and the sentence side at {@code cue}, {@code entity} and {@code best}, which is where the sentence
+ * stands relative to the best sentences by bagging: {@code IN}, {@code BEFORE} or {@code AFTER}. Points are a number or
+ * one of {@code clue}, {@code good_clue}, {@code confident} and {@code slam_dunk}. Anything after a # is a comment.
+ *
+ * Bagging is rule 0 in every rule set. It scores every question and its points depend on the sentence.
+ * @author Tobin Yehle
+ */
+public class RuleSet {
+    /** The id of the bagging rule */
+    public static final int BAGGING = 0;
+    /** The most rules a set can have, bagging included, so the rules that fire on a sentence fit in a long */
+    public static final int MAX_RULES = 64;
+
+    // the features a condition can look at, as indices into the feature arrays the scorer fills in
+    static final int ALWAYS = 0, CUES = 1, ENTITIES = 2, BEST = 3;
+    // bits for where a sentence stands relative to the why best set
+    static final int IN_BEST = 1, BEFORE_BEST = 1 << 1, AFTER_BEST = 1 << 2;
+
+    private static final Map<String, Integer> QUESTION_CUES = Util.mapOf(
+            Util.pairOf("MONTH", Scorer.MONTH),
+            Util.pairOf("KIND", Scorer.KIND),
+            Util.pairOf("ASKS_NAME", Scorer.ASKS_NAME),
+            Util.pairOf("THE_LAST", Scorer.THE_LAST),
+            Util.pairOf("START_BEGIN", Scorer.START_BEGIN),
+            Util.pairOf("MUCH_MANY", Scorer.MUCH_MANY));
+
+    private static final Map<String, Integer> SENTENCE_CUES = Util.mapOf(
+            Util.pairOf("DAY", Scorer.DAY),
+            Util.pairOf("CALL_FROM", Scorer.CALL_FROM),
+            Util.pairOf("NAME_CALL_KNOWN", Scorer.NAME_CALL_KNOWN),
+            Util.pairOf("NAME", Scorer.NAME),
+            Util.pairOf("LOCATION_PREPOSITION", Scorer.LOCATION_PREPOSITION),
+            Util.pairOf("FIRST_LAST_SINCE_AGO", Scorer.FIRST_LAST_SINCE_AGO),
+            Util.pairOf("START_BEGIN_SINCE_YEAR", Scorer.START_BEGIN_SINCE_YEAR),
+            Util.pairOf("WANT_SO_BECAUSE", Scorer.WANT_SO_BECAUSE));
+
+    private static final Map<String, Integer> BEST_RELATIONS = Util.mapOf(
+            Util.pairOf("IN", IN_BEST),
+            Util.pairOf("BEFORE", BEFORE_BEST),
+            Util.pairOf("AFTER", AFTER_BEST));
+
+    private static final Map<String, Integer> POINTS = Util.mapOf(
+            Util.pairOf("clue", Scorer.clue),
+            Util.pairOf("good_clue", Scorer.good_clue),
+            Util.pairOf("confident", Scorer.confident),
+            Util.pairOf("slam_dunk", Scorer.slam_dunk));
+
+    /** The name of the rules file Sherlock uses unless it is given another */
+    public static final String DEFAULT_FILE = "rules.txt";
+
+    /** The rules in {@link #DEFAULT_FILE}, which the build copies onto the class path */
+    public static final RuleSet DEFAULT = loadDefault();
+
+    private final String[] names;
+    private final QuestionPlan.Type[] types;
+    final int[] points;
+    final int[] questionFeature, questionMask, sentenceFeature, sentenceMask;
+    final boolean[] questionNegated, sentenceNegated;
+    // the ids of the rules for each type of question, in the order they were written
+    final int[][] byType;
+    // true for the types with a rule that looks at the best set, so it only has to be found for them
+    private final boolean[] usesBest;
+
+    private RuleSet(List<String[]> rules) {
+        int count = rules.size() + 1;
+        names = new String[count];
+        types = new QuestionPlan.Type[count];
+        points = new int[count];
+        questionFeature = new int[count];
+        questionMask = new int[count];
+        sentenceFeature = new int[count];
+        sentenceMask = new int[count];
+        questionNegated = new boolean[count];
+        sentenceNegated = new boolean[count];
+        names[BAGGING] = "bagging";
+
+        QuestionPlan.Type[] allTypes = QuestionPlan.Type.values();
+        int[] typeCounts = new int[allTypes.length];
+        usesBest = new boolean[allTypes.length];
+        for(int id = 1; id < count; id++) {
+            String[] rule = rules.get(id - 1);
+            types[id] = QuestionPlan.Type.valueOf(rule[0].toUpperCase());
+            compile(rule[1], true, id);
+            compile(rule[2], false, id);
+            points[id] = POINTS.containsKey(rule[3]) ? POINTS.get(rule[3]) : Integer.parseInt(rule[3]);
+            names[id] = rule.length > 4 ? rule[4] : rule[0] + "_" + id;
+            typeCounts[types[id].ordinal()]++;
+            if(sentenceFeature[id] == BEST)
+                usesBest[types[id].ordinal()] = true;
+        }
+
+        byType = new int[allTypes.length][];
+        for(QuestionPlan.Type type : allTypes) {
+            byType[type.ordinal()] = new int[typeCounts[type.ordinal()]];
+            int i = 0;
+            for(int id = 1; id < count; id++) {
+                if(types[id] == type)
+                    byType[type.ordinal()][i++] = id;
+            }
+        }
+    }
+
+    /**
+     * Compiles one side of a rule into a feature number, a mask and whether it is negated.
+     * @param condition The condition, like !entity:PERSON|ORGANIZATION
+     * @param questionSide True for the question side of the rule, false for the sentence side
+     * @param id The id of the rule
+     */
+    private void compile(String condition, boolean questionSide, int id) {
+        boolean negated = condition.startsWith("!");
+        if(negated)
+            condition = condition.substring(1);
+
+        int feature, mask = 0;
+        if(condition.equals("*")) {
+            feature = ALWAYS;
+            mask = -1;
+        }
+        else {
+            int colon = condition.indexOf(':');
+            if(colon < 0)
+                throw new IllegalArgumentException("Expected feature:BITS but got " + condition);
+            String featureName = condition.substring(0, colon);
+            Map<String, Integer> bits;
+            if(featureName.equals("cue")) {
+                feature = CUES;
+                bits = questionSide ? QUESTION_CUES : SENTENCE_CUES;
+            }
+            else if(featureName.equals("entity")) {
+                feature = ENTITIES;
+                bits = null;
+            }
+            else if(featureName.equals("best") && !questionSide) {
+                feature = BEST;
+                bits = BEST_RELATIONS;
+            }
+            else {
+                throw new IllegalArgumentException("Unknown " + (questionSide ? "question" : "sentence") +
+                                                   " feature " + featureName);
+            }
+
+            for(String name : condition.substring(colon + 1).split("\\|")) {
+                int bit = bits == null ? Scorer.entityBit(name) : bits.getOrDefault(name, 0);
+                if(bit == 0)
+                    throw new IllegalArgumentException("Unknown " + featureName + " " + name);
+                mask |= bit;
+            }
+        }
+
+        if(questionSide) {
+            questionFeature[id] = feature;
+            questionMask[id] = mask;
+            questionNegated[id] = negated;
+        }
+        else {
+            sentenceFeature[id] = feature;
+            sentenceMask[id] = mask;
+            sentenceNegated[id] = negated;
+        }
+    }
+
+    /**
+     * Compiles the rules in some lines of text.
+     * @param lines The lines of a rules file
+     * @return The compiled rules
+     * @throws IllegalArgumentException If a line is not a valid rule, naming the line
+     */
+    public static RuleSet parse(List<String> lines) {
+        List<String[]> rules = new ArrayList<>();
+        for(int lineNum = 0; lineNum < lines.size(); lineNum++) {
+            String line = lines.get(lineNum);
+            int comment = line.indexOf('#');
+            if(comment >= 0)
+                line = line.substring(0, comment);
+            line = line.trim();
+            if(line.isEmpty())
+                continue;
+
+            String[] rule = line.split("\\s+");
+            if(rule.length < 4 || rule.length > 5)
+                throw new IllegalArgumentException("Line " + (lineNum + 1) + ": expected type, question condition, " +
+                                                   "sentence condition, points and an optional name");
+            rules.add(rule);
+        }
+        if(rules.size() + 1 > MAX_RULES)
+            throw new IllegalArgumentException("There can be at most " + (MAX_RULES - 1) + " rules");
+
+        try {
+            return new RuleSet(rules);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad rule: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads and compiles a rules file.
+     * @param filename The name of the file
+     * @return The compiled rules
+     */
+    public static RuleSet load(String filename) {
+        return parse(Util.readLines(filename));
+    }
+
+    /**
+     * Reads the default rules from the class path, or from the working directory when running from the source tree
+     * without them copied over.
+     */
+    private static RuleSet loadDefault() {
+        InputStream in = RuleSet.class.getResourceAsStream("/" + DEFAULT_FILE);
+        if(in == null) {
+            if(!new File(DEFAULT_FILE).isFile())
+                throw new IllegalStateException(DEFAULT_FILE + " is not on the class path or in the working directory");
+            return load(DEFAULT_FILE);
+        }
+
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return parse(reader.lines().collect(Collectors.toList()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The number of rules, bagging included
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return The name of a rule
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return The type of question a rule scores, or null for bagging, which scores all of them
+     */
+    public QuestionPlan.Type type(int id) {
+        return types[id];
+    }
+
+    /**
+     * @return The points a rule gives, or 0 for bagging
+     */
+    public int points(int id) {
+        return points[id];
+    }
+
+    /**
+     * @return True if a type of question has a rule that needs the best sentences by bagging
+     */
+    boolean usesBest(QuestionPlan.Type type) {
+        return usesBest[type.ordinal()];
+    }
+
+    /**
+     * Checks the question side of a rule.
+     * @param id The id of the rule
+     * @param question The plan of the question
+     * @return True if the rule applies to the question
+     */
+    boolean appliesTo(int id, QuestionPlan question) {
+        int value;
+        switch (questionFeature[id]) {
+            case CUES:
+                value = question.cues;
+                break;
+            case ENTITIES:
+                value = question.entities;
+                break;
+            default:
+                value = -1;
+        }
+        return ((value & questionMask[id]) != 0) != questionNegated[id];
+    }
+}
@@ -0,0 +1,118 @@
+package cs.utah.sherlock;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts, for each type of question, how often each scoring rule fires, how often it decides which sentence wins and
+ * how long the rules take. The counters are striped, so many threads can score at once without fighting over them.
+ *
+ * Each rule is a couple of bit tests, far less than the resolution of the clock, so time is kept for each pass over
+ * the sentences, bagging and then the rules for the question type, rather than for each rule.
+ * @author Tobin Yehle
+ */
+public class RuleStats {
+    private static final QuestionPlan.Type[] TYPES = QuestionPlan.Type.values();
+
+    /** The rules being counted */
+    public final RuleSet rules;
+    private final LongAdder[] questions = adders(TYPES.length);
+    private final LongAdder[] sentences = adders(TYPES.length);
+    private final LongAdder[] baggingNanos = adders(TYPES.length);
+    private final LongAdder[] ruleNanos = adders(TYPES.length);
+    private final LongAdder[] fires;
+    private final LongAdder[] decided;
+
+    /**
+     * @param rules The rules to count, which have to be the ones the scorer uses
+     */
+    public RuleStats(RuleSet rules) {
+        this.rules = rules;
+        fires = adders(TYPES.length * rules.size());
+        decided = adders(TYPES.length * rules.size());
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for(int i = 0; i < count; i++)
+            adders[i] = new LongAdder();
+        return adders;
+    }
+
+    private int index(QuestionPlan.Type type, int rule) {
+        return type.ordinal() * rules.size() + rule;
+    }
+
+    void addQuestion(QuestionPlan.Type type, int sentenceCount, long baggingTime, long ruleTime) {
+        questions[type.ordinal()].increment();
+        sentences[type.ordinal()].add(sentenceCount);
+        baggingNanos[type.ordinal()].add(baggingTime);
+        ruleNanos[type.ordinal()].add(ruleTime);
+    }
+
+    void addFires(QuestionPlan.Type type, int rule, int sentenceCount) {
+        fires[index(type, rule)].add(sentenceCount);
+    }
+
+    void addDecided(QuestionPlan.Type type, int rule) {
+        decided[index(type, rule)].increment();
+    }
+
+    public long questions(QuestionPlan.Type type) {
+        return questions[type.ordinal()].sum();
+    }
+
+    /**
+     * @return The number of sentences scored for questions of a type
+     */
+    public long sentences(QuestionPlan.Type type) {
+        return sentences[type.ordinal()].sum();
+    }
+
+    /**
+     * @return The number of sentences a rule fired on for questions of a type
+     */
+    public long fires(QuestionPlan.Type type, int rule) {
+        return fires[index(type, rule)].sum();
+    }
+
+    /**
+     * @return The number of questions of a type whose best sentence would have been different without a rule
+     */
+    public long decided(QuestionPlan.Type type, int rule) {
+        return decided[index(type, rule)].sum();
+    }
+
+    /**
+     * @return A table of each rule's fires and decisions, and the time spent on each type of question
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-6s %-27s %6s %10s %9s %9s %9s%n",
+                "type", "rule", "points", "fires", "fire %", "decided", "decided %"));
+        for(QuestionPlan.Type type : TYPES) {
+            long questions = questions(type), sentences = sentences(type);
+            if(questions == 0)
+                continue;
+            for(int rule = 0; rule < rules.size(); rule++) {
+                if(rules.type(rule) != null && rules.type(rule) != type)
+                    continue;
+                report.append(String.format("%-6s %-27s %6s %10d %8.1f%% %9d %8.1f%%%n", type.name().toLowerCase(),
+                        rules.name(rule), rules.type(rule) == null ? "varies" : Integer.toString(rules.points(rule)),
+                        fires(type, rule), 100.0 * fires(type, rule) / Math.max(1, sentences), decided(type, rule),
+                        100.0 * decided(type, rule) / questions));
+            }
+        }
+
+        report.append(String.format("%n%-6s %10s %10s %16s %16s%n",
+                "type", "questions", "sentences", "bagging us/q", "rules us/q"));
+        for(QuestionPlan.Type type : TYPES) {
+            long questions = questions(type);
+            if(questions == 0)
+                continue;
+            report.append(String.format("%-6s %10d %10d %16.2f %16.2f%n", type.name().toLowerCase(), questions,
+                    sentences(type), baggingNanos[type.ordinal()].sum() / 1e3 / questions,
+                    ruleNanos[type.ordinal()].sum() / 1e3 / questions));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package cs.utah.sherlock;
+
+import java.util.stream.IntStream;
+
+/**
+ * The scores of every sentence in a story for every question about it.
+ * @author Tobin Yehle
+ */
+public class ScoreMatrix {
+    private final double[][] scores;
+    private final int[] sizes;
+    private final int[] best;
+
+    /**
+     * @param scores The score of each sentence, indexed by question then sentence
+     * @param sizes The size of each sentence, used to break ties
+     */
+    public ScoreMatrix(double[][] scores, int[] sizes) {
+        this.scores = scores;
+        this.sizes = sizes;
+        this.best = new int[scores.length];
+
+        for(int question = 0; question < scores.length; question++) {
+            best[question] = findBest(scores[question], sizes);
+        }
+    }
+
+    /**
+     * Finds the index of the highest scoring sentence. Ties go to the shorter sentence.
+     * @param row The scores of each sentence
+     * @param sizes The size of each sentence
+     * @return The index of the best sentence, or -1 if no sentence scored any points
+     */
+    public static int findBest(double[] row, int[] sizes) {
+        return findBest(row, sizes, row.length);
+    }
+
+    /**
+     * Finds the index of the highest scoring of the first few sentences. Ties go to the shorter sentence.
+     * @param row The scores of each sentence
+     * @param sizes The size of each sentence
+     * @param length The number of sentences to look at
+     * @return The index of the best sentence, or -1 if none of them scored any points
+     */
+    public static int findBest(double[] row, int[] sizes, int length) {
+        double bestScore = 0;
+        double bestSize = 0;
+        int bestIndex = -1;
+        for(int sentenceNum = 0; sentenceNum < length; sentenceNum++) {
+            // Prefer shorter sentences
+            if(row[sentenceNum] > bestScore ||
+                    (row[sentenceNum] == bestScore && sizes[sentenceNum] < bestSize)) {
+                bestIndex = sentenceNum;
+                bestScore = row[sentenceNum];
+                bestSize = sizes[sentenceNum];
+            }
+        }
+
+        return bestIndex;
+    }
+
+    public int questionCount() {
+        return scores.length;
+    }
+
+    public int sentenceCount() {
+        return sizes.length;
+    }
+
+    public double score(int question, int sentence) {
+        return scores[question][sentence];
+    }
+
+    /**
+     * @param question The index of the question
+     * @return The scores of every sentence for the question
+     */
+    public double[] scores(int question) {
+        return scores[question].clone();
+    }
+
+    /**
+     * @param question The index of the question
+     * @return The index of the best sentence for the question, or -1 if no sentence scored any points
+     */
+    public int best(int question) {
+        return best[question];
+    }
+
+    /**
+     * Ranks all the sentences for a question, best first. Ties go to the shorter sentence, then the earlier one.
+     * @param question The index of the question
+     * @return The sentence indices in order
+     */
+    public int[] ranked(int question) {
+        double[] row = scores[question];
+        return IntStream.range(0, row.length).boxed()
+                .sorted((a, b) -> row[a] != row[b] ? Double.compare(row[b], row[a]) : Integer.compare(sizes[a], sizes[b]))
+                .mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,695 @@
+package cs.utah.sherlock;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scores sentences by bagging and by the rules of a {@link RuleSet}. Everything a rule looks at is precomputed, either in the {@link PreparedDocument} or in the
+ * {@link QuestionPlan}, so once a document is prepared scoring a question does not allocate anything.
+ * @author Tobin Yehle
+ * @author Dasha Pruss
+ */
+public class Scorer {
+    private final double baggingWeight = 3;
+    // the points the rules in a rules file can give by name
+    static final int clue = 3, good_clue = 4, confident = 6, slam_dunk = 20;
+    // Size of our 'best' set
+    private static final int bestSetSizeWhy = 5;
+    private final double verbWeight = 2;
+
+    // Bits for the named entity types the rules look for
+    static final int PERSON = 1, ORGANIZATION = 1 << 1, LOCATION = 1 << 2, DATE = 1 << 3, TIME = 1 << 4,
+            MONEY = 1 << 5, PERCENT = 1 << 6;
+    /**
+     * @param nerTag A named entity tag, like PERSON
+     * @return The bit for the tag, or 0 if the rules do not look for it
+     */
+    static int entityBit(String nerTag) {
+        if(nerTag == null)
+            return 0;
+        switch (nerTag) {
+            case "PERSON":
+                return PERSON;
+            case "ORGANIZATION":
+                return ORGANIZATION;
+            case "LOCATION":
+                return LOCATION;
+            case "DATE":
+                return DATE;
+            case "TIME":
+                return TIME;
+            case "MONEY":
+                return MONEY;
+            case "PERCENT":
+                return PERCENT;
+            default:
+                return 0;
+        }
+    }
+
+    // Bits for the cue phrases the rules look for in sentences
+    static final int DAY = 1, CALL_FROM = 1 << 1, NAME_CALL_KNOWN = 1 << 2, NAME = 1 << 3,
+            LOCATION_PREPOSITION = 1 << 4, FIRST_LAST_SINCE_AGO = 1 << 5, START_BEGIN_SINCE_YEAR = 1 << 6,
+            WANT_SO_BECAUSE = 1 << 7;
+    // Bits for the cue phrases the rules look for in questions
+    static final int MONTH = 1, KIND = 1 << 1, ASKS_NAME = 1 << 2, THE_LAST = 1 << 3, START_BEGIN = 1 << 4,
+            MUCH_MANY = 1 << 5;
+
+    /**
+     * What to do with sentences that have none of the named entity types the answer to a who, where, when or how much
+     * question should have. If no sentence has any of them, every sentence is scored as usual.
+     */
+    public enum Pruning {
+        /** Score every sentence with every rule */
+        OFF,
+        /** Only give those sentences their bagging points */
+        BAGGING_ONLY,
+        /** Do not score those sentences at all, so they are never picked */
+        SKIP
+    }
+
+    /**
+     * Buffers that are reused from one question to the next. A scratch space must only be used by one thread at a time.
+     */
+    public static class Scratch {
+        private int[] questionTerms = new int[16];
+        private int questionTermCount;
+        // a bit for each question term id mod 64, and whether no two of the terms share a bit
+        private long questionSignature;
+        private boolean signatureExact;
+        private final int[] best = new int[bestSetSizeWhy];
+        private int bestCount;
+
+        // the rules whose question side holds for the current question
+        private final int[] active = new int[RuleSet.MAX_RULES];
+        private int activeCount;
+        // the features of the current sentence, indexed by the feature numbers in RuleSet
+        private final int[] features = new int[4];
+
+        // which rules fired on the current sentence, as bits by rule id
+        private long fired;
+        // only filled in while rule statistics are being kept
+        private long[] firedBy = new long[0];
+        private double[] bagging = new double[0];
+        private final int[] fires = new int[RuleSet.MAX_RULES];
+
+        private void ensureCapacity(int sentenceCount) {
+            if(firedBy.length < sentenceCount) {
+                firedBy = new long[Math.max(sentenceCount, 2 * firedBy.length)];
+                bagging = new double[firedBy.length];
+            }
+        }
+    }
+
+    private volatile RuleSet rules = RuleSet.DEFAULT;
+    // counts how the rules do, or null to not count
+    private volatile RuleStats stats;
+
+    private volatile Pruning pruning = Pruning.OFF;
+    private final LongAdder prunableSentences = new LongAdder();
+    private final LongAdder prunedSentences = new LongAdder();
+
+    private volatile boolean bounding = true;
+    private final LongAdder boundedSentences = new LongAdder();
+    private final LongAdder skippedSentences = new LongAdder();
+
+    public void setPruning(Pruning pruning) {
+        this.pruning = pruning;
+    }
+
+    public Pruning getPruning() {
+        return pruning;
+    }
+
+    /**
+     * @return The number of sentences scored for questions that pruning applies to
+     */
+    public long prunableSentences() {
+        return prunableSentences.sum();
+    }
+
+    /**
+     * @return The number of those sentences that were pruned
+     */
+    public long prunedSentences() {
+        return prunedSentences.sum();
+    }
+
+    /**
+     * @param bounding True to skip scoring sentences that cannot be the best one in {@link #findBestSentence}, false to
+     *                 always score every sentence
+     */
+    public void setBounding(boolean bounding) {
+        this.bounding = bounding;
+    }
+
+    public boolean isBounding() {
+        return bounding;
+    }
+
+    /**
+     * @return The number of sentences {@link #findBestSentence} has checked against a bound
+     */
+    public long boundedSentences() {
+        return boundedSentences.sum();
+    }
+
+    /**
+     * @return The number of those sentences whose bound showed they could not be the best, so the rules or bagging
+     * were not run on them
+     */
+    public long skippedSentences() {
+        return skippedSentences.sum();
+    }
+
+    /**
+     * Works out which entity types a sentence needs to be scored fully for a question.
+     * @param candidates The sentences to be scored, or null for all of them
+     * @param count The number of sentences to be scored
+     * @return A bit set of the entity types, or 0 if every sentence should be scored fully
+     */
+    private int answerEntities(PreparedDocument document, QuestionPlan question, int[] candidates, int count) {
+        int wanted = question.answerEntities;
+        boolean prunable = question.type == QuestionPlan.Type.WHO || question.type == QuestionPlan.Type.WHERE ||
+                question.type == QuestionPlan.Type.WHEN ||
+                (question.type == QuestionPlan.Type.HOW && (question.cues & MUCH_MANY) != 0);
+        if(pruning == Pruning.OFF || wanted == 0 || !prunable)
+            return 0;
+
+        int matching = 0;
+        for(int i = 0; i < count; i++) {
+            if((document.entities(candidates == null ? i : candidates[i]) & wanted) != 0)
+                matching++;
+        }
+        prunableSentences.add(count);
+        // nothing can supply the answer, so the rules have to pick the best of the rest
+        if(matching == 0)
+            return 0;
+        prunedSentences.add(count - matching);
+        return wanted;
+    }
+
+    /**
+     * @param rules The rules to score with, in place of the default ones
+     */
+    public void setRules(RuleSet rules) {
+        this.rules = rules;
+    }
+
+    public RuleSet getRules() {
+        return rules;
+    }
+
+    /**
+     * Keeps counts of how often each rule fires, how often it decides the best sentence and how long the rules take.
+     * Only questions scored with the rules the stats were made for are counted.
+     * @param stats Where to keep the counts, or null to stop counting
+     */
+    public void setStats(RuleStats stats) {
+        this.stats = stats;
+    }
+
+    public RuleStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Scores every sentence in a document against a single question.
+     * @param document The prepared document
+     * @param question The plan of the question
+     * @param scratch Buffers to work in
+     * @param scores Where to put the score of each sentence
+     */
+    public void score(PreparedDocument document, QuestionPlan question, Scratch scratch, double[] scores) {
+        RuleSet rules = this.rules;
+        RuleStats stats = this.stats;
+        if(stats != null && stats.rules != rules)
+            stats = null;
+        long start = stats == null ? 0 : System.nanoTime();
+        resolveTerms(document, question.terms, scratch);
+
+        // sentences may be appended while this runs, so only score the ones there was room for
+        int sentenceCount = Math.min(document.sentenceCount(), scores.length);
+        int answerEntities = answerEntities(document, question, null, sentenceCount);
+        boolean skip = pruning == Pruning.SKIP;
+        if(stats != null)
+            scratch.ensureCapacity(scores.length);
+        for(int sentenceNum = 0; sentenceNum < sentenceCount; sentenceNum++) {
+            if(skip && pruned(document, sentenceNum, answerEntities))
+                scores[sentenceNum] = Double.NEGATIVE_INFINITY;
+            else
+                scores[sentenceNum] = getPointsByBagging(document, sentenceNum, scratch);
+            if(stats != null)
+                scratch.bagging[sentenceNum] = Math.max(0, scores[sentenceNum]);
+        }
+        long bagged = stats == null ? 0 : System.nanoTime();
+
+        scratch.bestCount = 0;
+        if(rules.usesBest(question.type))
+            findBestByBagging(sentenceCount, scores, scratch);
+
+        selectRules(rules, question, scratch);
+        for(int sentenceNum = 0; sentenceNum < sentenceCount; sentenceNum++) {
+            scratch.fired = 0;
+            if(!pruned(document, sentenceNum, answerEntities))
+                scores[sentenceNum] += getPointsByRules(rules, document, sentenceNum, scratch);
+            if(stats != null)
+                scratch.firedBy[sentenceNum] = scratch.fired;
+        }
+
+        if(stats != null)
+            record(stats, rules, question, document, null, sentenceCount, scores, scratch, bagged - start,
+                   System.nanoTime() - bagged);
+    }
+
+    /**
+     * Scores only some of the sentences in a document against a question, for when a {@link VectorIndex} has already
+     * picked out the likely ones. The other sentences get negative infinity, so they are never picked. The why rules
+     * pick their best set from the candidates alone.
+     * @param document The prepared document
+     * @param question The plan of the question
+     * @param scratch Buffers to work in
+     * @param candidates The sentences to score, in increasing order
+     * @param candidateCount The number of candidates in use at the start of the array
+     * @param scores Where to put the score of each sentence
+     */
+    public void score(PreparedDocument document, QuestionPlan question, Scratch scratch, int[] candidates,
+                      int candidateCount, double[] scores) {
+        RuleSet rules = this.rules;
+        RuleStats stats = this.stats;
+        if(stats != null && stats.rules != rules)
+            stats = null;
+        long start = stats == null ? 0 : System.nanoTime();
+        resolveTerms(document, question.terms, scratch);
+
+        Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+        int answerEntities = answerEntities(document, question, candidates, candidateCount);
+        boolean skip = pruning == Pruning.SKIP;
+        if(stats != null)
+            scratch.ensureCapacity(scores.length);
+        for(int i = 0; i < candidateCount; i++) {
+            if(!skip || !pruned(document, candidates[i], answerEntities))
+                scores[candidates[i]] = getPointsByBagging(document, candidates[i], scratch);
+            if(stats != null)
+                scratch.bagging[candidates[i]] = Math.max(0, scores[candidates[i]]);
+        }
+        long bagged = stats == null ? 0 : System.nanoTime();
+
+        scratch.bestCount = 0;
+        if(rules.usesBest(question.type)) {
+            for(int i = 0; i < candidateCount; i++)
+                considerForBest(candidates[i], scores, scratch);
+        }
+
+        selectRules(rules, question, scratch);
+        for(int i = 0; i < candidateCount; i++) {
+            scratch.fired = 0;
+            if(!pruned(document, candidates[i], answerEntities))
+                scores[candidates[i]] += getPointsByRules(rules, document, candidates[i], scratch);
+            if(stats != null)
+                scratch.firedBy[candidates[i]] = scratch.fired;
+        }
+
+        if(stats != null)
+            record(stats, rules, question, document, candidates, candidateCount, scores, scratch, bagged - start,
+                   System.nanoTime() - bagged);
+    }
+
+    /**
+     * Finds the best sentence in a document for a question. This is the sentence {@link ScoreMatrix#findBest} would
+     * pick from the scores {@link #score} gives, ties included, but sentences whose upper bound shows they cannot be
+     * it are not fully scored.
+     * @param document The prepared document
+     * @param question The plan of the question
+     * @param scratch Buffers to work in
+     * @param scores Where to put the score of each sentence. Sentences that were not fully scored get negative infinity
+     *               instead, since all that is known about them is that they cannot win.
+     * @return The index of the best sentence, or -1 if no sentence scored any points
+     */
+    public int findBestSentence(PreparedDocument document, QuestionPlan question, Scratch scratch, double[] scores) {
+        int sentenceCount = Math.min(document.sentenceCount(), scores.length);
+        if(!bounding || stats != null) {
+            score(document, question, scratch, scores);
+            return ScoreMatrix.findBest(scores, document.sizes(), sentenceCount);
+        }
+        return findBestBounded(document, question, scratch, null, sentenceCount, scores);
+    }
+
+    /**
+     * Finds the best of some of the sentences in a document for a question, just like {@link #findBestSentence} does
+     * for all of them. The other sentences, and candidates that were not fully scored, get negative infinity.
+     * @param document The prepared document
+     * @param question The plan of the question
+     * @param scratch Buffers to work in
+     * @param candidates The sentences to consider, in increasing order
+     * @param candidateCount The number of candidates in use at the start of the array
+     * @param scores Where to put the score of each fully scored sentence
+     * @return The index of the best sentence, or -1 if no candidate scored any points
+     */
+    public int findBestSentence(PreparedDocument document, QuestionPlan question, Scratch scratch, int[] candidates,
+                                int candidateCount, double[] scores) {
+        if(!bounding || stats != null) {
+            score(document, question, scratch, candidates, candidateCount, scores);
+            return ScoreMatrix.findBest(scores, document.sizes(), Math.min(document.sizes().length, scores.length));
+        }
+        Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+        return findBestBounded(document, question, scratch, candidates, candidateCount, scores);
+    }
+
+    /**
+     * Branch and bound over the sentences in order. The best so far is tracked exactly like {@link ScoreMatrix#findBest}
+     * does, so a sentence whose upper bound would not replace it when its turn comes cannot be the answer. Its score is
+     * left at negative infinity, since rules can give negative points and nothing else is known about it. The bound on
+     * bagging comes from the term signatures of the question and the
+     * sentence, and the bound on the rules is the points of every rule whose question side holds. The why rules need the
+     * bagging score of every sentence to find the best set, so for them only the rules are skipped.
+     * @param candidates The sentences to consider, or null for all of them
+     * @param count The number of sentences to consider
+     */
+    private int findBestBounded(PreparedDocument document, QuestionPlan question, Scratch scratch, int[] candidates,
+                                int count, double[] scores) {
+        RuleSet rules = this.rules;
+        resolveTerms(document, question.terms, scratch);
+        long signature = 0;
+        for(int i = 0; i < scratch.questionTermCount; i++)
+            signature |= 1L << scratch.questionTerms[i];
+        scratch.questionSignature = signature;
+        scratch.signatureExact = Long.bitCount(signature) == scratch.questionTermCount;
+        int answerEntities = answerEntities(document, question, candidates, count);
+        boolean skip = pruning == Pruning.SKIP;
+        int[] sizes = document.sizes();
+        selectRules(rules, question, scratch);
+        double ruleBonus = 0;
+        for(int i = 0; i < scratch.activeCount; i++)
+            ruleBonus += Math.max(0, rules.points[scratch.active[i]]);
+
+        boolean usesBest = rules.usesBest(question.type);
+        scratch.bestCount = 0;
+        if(usesBest) {
+            for(int i = 0; i < count; i++) {
+                int sentenceNum = candidates == null ? i : candidates[i];
+                if(skip && pruned(document, sentenceNum, answerEntities))
+                    scores[sentenceNum] = Double.NEGATIVE_INFINITY;
+                else
+                    scores[sentenceNum] = getPointsByBagging(document, sentenceNum, scratch);
+                considerForBest(sentenceNum, scores, scratch);
+            }
+        }
+
+        double bestScore = 0;
+        int bestSize = 0, best = -1;
+        long skipped = 0;
+        for(int i = 0; i < count; i++) {
+            int sentenceNum = candidates == null ? i : candidates[i];
+            boolean pruned = pruned(document, sentenceNum, answerEntities);
+            double bonus = pruned ? 0 : ruleBonus;
+            if(!usesBest) {
+                if(skip && pruned) {
+                    scores[sentenceNum] = Double.NEGATIVE_INFINITY;
+                    continue;
+                }
+                if(!beats(baggingBound(document, sentenceNum, scratch) + bonus, sizes[sentenceNum], bestScore, bestSize)) {
+                    scores[sentenceNum] = Double.NEGATIVE_INFINITY;
+                    skipped++;
+                    continue;
+                }
+                scores[sentenceNum] = getPointsByBagging(document, sentenceNum, scratch);
+            }
+
+            if(!pruned) {
+                if(beats(scores[sentenceNum] + bonus, sizes[sentenceNum], bestScore, bestSize))
+                    scores[sentenceNum] += getPointsByRules(rules, document, sentenceNum, scratch);
+                else {
+                    // the bagging points alone are not a bound either way once a rule can take points off
+                    scores[sentenceNum] = Double.NEGATIVE_INFINITY;
+                    skipped++;
+                    continue;
+                }
+            }
+
+            if(beats(scores[sentenceNum], sizes[sentenceNum], bestScore, bestSize)) {
+                best = sentenceNum;
+                bestScore = scores[sentenceNum];
+                bestSize = sizes[sentenceNum];
+            }
+        }
+
+        boundedSentences.add(count);
+        skippedSentences.add(skipped);
+        return best;
+    }
+
+    /**
+     * @return True if a sentence with this score and size would replace the best so far in {@link ScoreMatrix#findBest}
+     */
+    private static boolean beats(double score, int size, double bestScore, int bestSize) {
+        return score > bestScore || (score == bestScore && size < bestSize);
+    }
+
+    /**
+     * Bounds the bagging points a sentence could get. When no two question terms share a bit of their signature, each
+     * term the sentence shares sets a different bit in the and of the signatures, so counting the bits bounds the
+     * shared terms. Otherwise the bound is as if every question term were one of the sentence's terms.
+     * @return The most bagging points the sentence could get
+     */
+    private double baggingBound(PreparedDocument document, int sentenceNum, Scratch scratch) {
+        if(scratch.signatureExact) {
+            return baggingWeight*(Long.bitCount(document.verbSignature(sentenceNum) & scratch.questionSignature)*verbWeight +
+                                  Long.bitCount(document.otherSignature(sentenceNum) & scratch.questionSignature));
+        }
+        int terms = scratch.questionTermCount;
+        return baggingWeight*(Math.min(terms, document.verbTerms(sentenceNum).length)*verbWeight +
+                              Math.min(terms, document.otherTerms(sentenceNum).length));
+    }
+
+    /**
+     * Counts the rules that fired on each sentence of a question, and works out which of them the best sentence
+     * depends on. A rule decided the best sentence if taking its points away from every sentence it fired on would
+     * make a different sentence win. Only rules that fired on the winner can do that, since taking points away from
+     * the others cannot help them win. The why best set is left as it was when bagging is taken away.
+     * @param candidates The sentences that were scored, or null if all of them were
+     * @param count The number of sentences that were scored
+     */
+    private void record(RuleStats stats, RuleSet rules, QuestionPlan question, PreparedDocument document, int[] candidates,
+                        int count, double[] scores, Scratch scratch, long baggingNanos, long ruleNanos) {
+        int[] fires = scratch.fires;
+        Arrays.fill(fires, 0);
+        for(int i = 0; i < count; i++) {
+            int sentenceNum = candidates == null ? i : candidates[i];
+            long fired = scratch.firedBy[sentenceNum];
+            if(scratch.bagging[sentenceNum] > 0)
+                fired |= 1L << RuleSet.BAGGING;
+            scratch.firedBy[sentenceNum] = fired;
+            for(; fired != 0; fired &= fired - 1)
+                fires[Long.numberOfTrailingZeros(fired)]++;
+        }
+        for(int rule = 0; rule < rules.size(); rule++) {
+            if(fires[rule] > 0)
+                stats.addFires(question.type, rule, fires[rule]);
+        }
+
+        int[] sizes = document.sizes();
+        int best = ScoreMatrix.findBest(scores, sizes);
+        if(best >= 0) {
+            for(long onBest = scratch.firedBy[best]; onBest != 0; onBest &= onBest - 1) {
+                int rule = Long.numberOfTrailingZeros(onBest);
+                long bit = 1L << rule;
+                for(int i = 0; i < count; i++) {
+                    int sentenceNum = candidates == null ? i : candidates[i];
+                    if((scratch.firedBy[sentenceNum] & bit) != 0)
+                        scores[sentenceNum] -= points(rules, rule, sentenceNum, scratch);
+                }
+                if(ScoreMatrix.findBest(scores, sizes) != best)
+                    stats.addDecided(question.type, rule);
+                // the points are small integers, so adding them back restores the scores exactly
+                for(int i = 0; i < count; i++) {
+                    int sentenceNum = candidates == null ? i : candidates[i];
+                    if((scratch.firedBy[sentenceNum] & bit) != 0)
+                        scores[sentenceNum] += points(rules, rule, sentenceNum, scratch);
+                }
+            }
+        }
+
+        stats.addQuestion(question.type, count, baggingNanos, ruleNanos);
+    }
+
+    private static boolean pruned(PreparedDocument document, int sentenceNum, int answerEntities) {
+        return answerEntities != 0 && (document.entities(sentenceNum) & answerEntities) == 0;
+    }
+
+    private static double points(RuleSet rules, int rule, int sentenceNum, Scratch scratch) {
+        return rule == RuleSet.BAGGING ? scratch.bagging[sentenceNum] : rules.points[rule];
+    }
+
+    /**
+     * Looks up the ids of the question terms in the document, and sorts them into the scratch space. Terms that are
+     * not in the document are dropped, since they cannot match anything.
+     * @param document The document the ids belong to
+     * @param questionTerms The terms in the question
+     * @param scratch Where to put the sorted ids
+     */
+    private void resolveTerms(PreparedDocument document, String[] questionTerms, Scratch scratch) {
+        if(scratch.questionTerms.length < questionTerms.length)
+            scratch.questionTerms = new int[Math.max(questionTerms.length, 2 * scratch.questionTerms.length)];
+
+        int[] ids = scratch.questionTerms;
+        int count = 0;
+        for(String term : questionTerms) {
+            int id = document.termId(term);
+            if(id < 0)
+                continue;
+
+            // insertion sort, questions only have a handful of terms
+            int i = count++;
+            while(i > 0 && ids[i - 1] > id) {
+                ids[i] = ids[i - 1];
+                i--;
+            }
+            ids[i] = id;
+        }
+        scratch.questionTermCount = count;
+    }
+
+    /**
+     * Calculate intersection of bagged words to compute a score
+     * @param document All sentences
+     * @param sentenceNum The sentence to consider
+     * @param scratch Holds the sorted ids of the terms in the question
+     * @return score
+     */
+    private double getPointsByBagging(PreparedDocument document, int sentenceNum, Scratch scratch){
+        // Weigh the verbs higher than words that are not verbs, as per Ellen's paper
+        int verbIntersection = countShared(document.verbTerms(sentenceNum), scratch.questionTerms, scratch.questionTermCount);
+        int notVerbIntersection = countShared(document.otherTerms(sentenceNum), scratch.questionTerms, scratch.questionTermCount);
+
+        return baggingWeight*(verbIntersection*verbWeight + notVerbIntersection);
+    }
+
+    /**
+     * Picks out the rules for the type of question whose question side holds. The question side is the same for every
+     * sentence, so it is only checked once.
+     * @param rules The rules to pick from
+     * @param question The plan of the question
+     * @param scratch Where to put the ids of the rules that apply
+     */
+    private static void selectRules(RuleSet rules, QuestionPlan question, Scratch scratch) {
+        int count = 0;
+        for(int rule : rules.byType[question.type.ordinal()]) {
+            if(rules.appliesTo(rule, question))
+                scratch.active[count++] = rule;
+        }
+        scratch.activeCount = count;
+        scratch.features[RuleSet.ALWAYS] = -1;
+    }
+
+    /**
+     * Checks the sentence side of each rule that applies to the question, and adds up the points of the ones that hold
+     * @param rules The rules to check
+     * @param document All sentences
+     * @param sentenceNum The sentence to consider
+     * @param scratch Holds the rules that apply, the best sentences by bagging, and notes which rules fire
+     * @return points for the sentence according to the type of question, on top of the bagging points
+     */
+    private double getPointsByRules(RuleSet rules, PreparedDocument document, int sentenceNum, Scratch scratch) {
+        int[] features = scratch.features;
+        features[RuleSet.CUES] = document.cues(sentenceNum);
+        features[RuleSet.ENTITIES] = document.entities(sentenceNum);
+        features[RuleSet.BEST] = scratch.bestCount == 0 ? 0 : bestRelation(scratch, sentenceNum);
+
+        double score = 0;
+        long fired = 0;
+        for(int i = 0; i < scratch.activeCount; i++) {
+            int rule = scratch.active[i];
+            if(((features[rules.sentenceFeature[rule]] & rules.sentenceMask[rule]) != 0) != rules.sentenceNegated[rule]) {
+                score += rules.points[rule];
+                fired |= 1L << rule;
+            }
+        }
+        scratch.fired = fired;
+        return score;
+    }
+
+    /**
+     * Works out where a sentence stands relative to the best set, for the why rules
+     * @param scratch Holds the n best sentences by bagging
+     * @param sentenceNum The sentence to consider
+     * @return Bits for whether the sentence is in the best set, precedes a member of it or follows a member of it
+     */
+    private int bestRelation(Scratch scratch, int sentenceNum) {
+        int relation = 0;
+        if(inBest(scratch, sentenceNum))
+            relation |= RuleSet.IN_BEST;
+        if(inBest(scratch, sentenceNum + 1))
+            relation |= RuleSet.BEFORE_BEST;
+        if(inBest(scratch, sentenceNum - 1))
+            relation |= RuleSet.AFTER_BEST;
+        return relation;
+    }
+
+    /**
+     * Gets the n best sentences by bagging score, for the why rules. These are the first n sentences after a stable
+     * sort of the bagging scores in increasing order.
+     * @param sentenceCount The number of sentences
+     * @param baggingScores The bagging score of each sentence
+     * @param scratch Where to put the indices of the best sentences
+     */
+    private void findBestByBagging(int sentenceCount, double[] baggingScores, Scratch scratch) {
+        scratch.bestCount = 0;
+        for(int sentenceNum = 0; sentenceNum < sentenceCount; sentenceNum++) {
+            considerForBest(sentenceNum, baggingScores, scratch);
+        }
+    }
+
+    /**
+     * Puts a sentence in the best set if it belongs there. Sentences must be considered in increasing order.
+     * @param sentenceNum The sentence to consider
+     * @param baggingScores The bagging score of each sentence
+     * @param scratch Holds the best set so far
+     */
+    private void considerForBest(int sentenceNum, double[] baggingScores, Scratch scratch) {
+        int[] best = scratch.best;
+        int count = scratch.bestCount;
+        double score = baggingScores[sentenceNum];
+        if(count == best.length && baggingScores[best[count - 1]] <= score)
+            return;
+
+        // later sentences go after earlier ones with the same score, just like a stable sort
+        int i = count < best.length ? count++ : count - 1;
+        while(i > 0 && baggingScores[best[i - 1]] > score) {
+            best[i] = best[i - 1];
+            i--;
+        }
+        best[i] = sentenceNum;
+        scratch.bestCount = count;
+    }
+
+    private boolean inBest(Scratch scratch, int sentenceNum) {
+        for(int i = 0; i < scratch.bestCount; i++) {
+            if(scratch.best[i] == sentenceNum)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Counts the ids two sorted arrays have in common.
+     * @param left A sorted array of distinct ids
+     * @param right A sorted array of distinct ids
+     * @param rightLength The number of ids in use at the start of the right array
+     * @return The size of the intersection
+     */
+    private static int countShared(int[] left, int[] right, int rightLength) {
+        int shared = 0;
+        int i = 0, j = 0;
+        while(i < left.length && j < rightLength) {
+            if(left[i] < right[j]) i++;
+            else if(left[i] > right[j]) j++;
+            else {
+                shared++;
+                i++;
+                j++;
+            }
+        }
+        return shared;
+    }
+}
@@ -1,21 +1,27 @@
 package cs.utah.sherlock;
 
-import edu.stanford.nlp.dcoref.CorefChain;
 import edu.stanford.nlp.dcoref.CorefCoreAnnotations;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 import edu.stanford.nlp.process.Morphology;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations;
+import edu.stanford.nlp.util.ArrayCoreMap;
 import edu.stanford.nlp.util.CoreMap;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
+ * Answers questions about stories. A single instance can be shared between threads: the models, rule tables and stop
+ * words never change after construction, and the stemmer and scoring buffers are kept per thread.
  * @author Tobin Yehle
  * @author Dasha Pruss
  */
@@ -24,55 +30,130 @@ public class Sherlock {
     public final Set<String> stopWords;
     private final Set<String> questionWords;
 
-    private final double baggingWeight = 3;
-    private final int clue = 3, good_clue = 4, confident = 6, slam_dunk = 20;
-    // Size of our 'best' set
-    private final int bestSetSizeWhy = 5;
-    private final double verbWeight = 2;
-
     private final Set<String> verbTags;
     private final Set<String> locationPrepositions;
     private final Set<List<String>> monthNames;
     private final Set<List<String>> days;
 
-    private Map<String, Set<String>> nerFilter;
-    private StanfordCoreNLP pipeline;
-    private Morphology morph;
+    private final Map<Integer, Set<List<String>>> sentenceCues;
+    private final Map<Integer, Set<List<String>>> questionCues;
+
+    private final Scorer scorer = new Scorer();
+    // Morphology keeps lexer state between calls, so each thread needs its own, as do the scoring buffers
+    private final ThreadLocal<Scorer.Scratch> scratch = ThreadLocal.withInitial(Scorer.Scratch::new);
+    private final ThreadLocal<Morphology> morph = ThreadLocal.withInitial(Morphology::new);
+
+    private final Map<String, Set<String>> nerFilter;
+    private final StanfordCoreNLP pipeline;
+    // only built the first time a parse is asked for, since nothing else needs the parser model
+    private volatile StanfordCoreNLP parsePipeline;
+    private final StanfordCoreNLP corefPipeline;
+
+    // Answers the questions about a story in parallel once the story is annotated
+    private final ForkJoinPool questionPool;
+
+    /**
+     * How co-referent mentions are found before sentences are bagged.
+     */
+    public enum Coref {
+        /** Stanford's dcoref. This needs every sentence in the story to be parsed. */
+        DCOREF,
+        /** Resolve pronouns to recent names with {@link PronounResolver}. This only needs tokens, POS and NER. */
+        PRONOUNS,
+        /** Do not replace any mentions. Sentences are only parsed when asked for. */
+        NONE
+    }
+
+    public final Coref coref;
+    private final PronounResolver pronounResolver = new PronounResolver();
+
+    // Remembers prepared documents when stories are asked about more than once, or null to always annotate
+    private volatile DocumentCache documentCache;
+    // Remembers the plans of questions that have been asked before, or null to always plan
+    private volatile QuestionCache questionCache;
+    // Keeps too many large stories from being annotated at once, or null to annotate as many as are asked for
+    private volatile MemoryBudget memoryBudget;
 
     public Sherlock(String stopWordsFile) throws IOException, ClassNotFoundException {
+        this(stopWordsFile, Coref.DCOREF);
+    }
+
+    public Sherlock(String stopWordsFile, Coref coref) throws IOException, ClassNotFoundException {
+        this(stopWordsFile, coref, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stopWordsFile The file of words to leave out of bags of words
+     * @param coref How to find co-referent mentions
+     * @param parallelism How many questions about a story to answer at once
+     */
+    public Sherlock(String stopWordsFile, Coref coref, int parallelism) throws IOException, ClassNotFoundException {
+        this.coref = coref;
+        this.questionPool = new ForkJoinPool(parallelism);
+
         // creates a StanfordCoreNLP object, with POS tagging, lemmatization, NER, parsing, and coreference resolution
         Properties props = new Properties();
         // using ner "muc7" model
         props.put("ner.model", "edu/stanford/nlp/models/ner/english.muc.7class.distsim.crf.ser.gz");
 
-        props.put("annotators", "tokenize, ssplit, pos, ner, parse, dcoref");
-//        props.put("annotators", "tokenize, ssplit, pos, ner");
+        // parsing is by far the most expensive step, and the rules never look at the trees, so it is split off
+        props.put("annotators", "tokenize, ssplit, pos, ner");
         props.setProperty("ner.useSUTime", "false");
         props.setProperty("ner.applyNumericClassifiers", "false");
 
         pipeline = new StanfordCoreNLP(props);
 
-        this.stopWords = new HashSet<>(Util.readLines(stopWordsFile));
+        // this runs on documents that have already been through the main pipeline
+        if(coref == Coref.DCOREF) {
+            Properties corefProps = new Properties();
+            corefProps.put("annotators", "parse, dcoref");
+            corefProps.setProperty("enforceRequirements", "false");
+            corefPipeline = new StanfordCoreNLP(corefProps);
+        }
+        else {
+            corefPipeline = null;
+        }
+
+        this.stopWords = Collections.unmodifiableSet(new HashSet<>(Util.readLines(stopWordsFile)));
 
-        this.verbTags = Util.setOf("VB", "VBD", "VBG", "VBN", "VBP", "VBZ");
+        this.verbTags = Collections.unmodifiableSet(Util.setOf("VB", "VBD", "VBG", "VBN", "VBP", "VBZ"));
 
-        locationPrepositions = Util.setOf("in", "at", "near", "inside", "outside", "around");
+        locationPrepositions = Collections.unmodifiableSet(Util.setOf("in", "at", "near", "inside", "outside", "around"));
 
-        questionWords = Util.setOf("who", "whom", "whose", "which", "where", "when", "what", "why", "how");
+        questionWords = Collections.unmodifiableSet(Util.setOf("who", "whom", "whose", "which", "where", "when", "what", "why", "how"));
 
         // build the ner filter
         // NER-TAGS: Location, Person, Organization, Money, Percent, Date, Time
-        nerFilter = Util.mapOf(Util.pairOf("who", Util.setOf("PERSON", "ORGANIZATION")),
-                               Util.pairOf("where", Util.setOf("LOCATION", "ORGANIZATION")),
-                               Util.pairOf("which", Util.setOf("LOCATION", "PERSON", "ORGANIZATION")),
-                               Util.pairOf("when", Util.setOf("DATE", "TIME")),
-                               Util.pairOf("how", Util.setOf("MONEY", "PERCENT")));
-
-        monthNames = makePhrases(Util.setOf("January", "February", "March", "April", "May", "June", "July", "August", "September", "October", "November", "December"));
-        days = makePhrases(Util.setOf("today", "yesterday", "tomorrow"));
+        nerFilter = Collections.unmodifiableMap(Util.mapOf(
+                Util.pairOf("who", Collections.unmodifiableSet(Util.setOf("PERSON", "ORGANIZATION"))),
+                Util.pairOf("where", Collections.unmodifiableSet(Util.setOf("LOCATION", "ORGANIZATION"))),
+                Util.pairOf("which", Collections.unmodifiableSet(Util.setOf("LOCATION", "PERSON", "ORGANIZATION"))),
+                Util.pairOf("when", Collections.unmodifiableSet(Util.setOf("DATE", "TIME"))),
+                Util.pairOf("how", Collections.unmodifiableSet(Util.setOf("MONEY", "PERCENT")))));
+
+        monthNames = Collections.unmodifiableSet(makePhrases(Util.setOf("January", "February", "March", "April", "May", "June", "July", "August", "September", "October", "November", "December")));
+        Set<List<String>> days = makePhrases(Util.setOf("today", "yesterday", "tomorrow"));
         days.add(Util.listOf("last", "night"));
-
-        morph = new Morphology();
+        this.days = Collections.unmodifiableSet(days);
+
+        // stem the cue phrases once up front rather than every time a sentence is checked
+        sentenceCues = Collections.unmodifiableMap(Util.mapOf(
+                Util.pairOf(Scorer.DAY, stemPhrases(days)),
+                Util.pairOf(Scorer.CALL_FROM, stemPhrases(makePhrases(Util.setOf("call", "from")))),
+                Util.pairOf(Scorer.NAME_CALL_KNOWN, stemPhrases(makePhrases(Util.setOf("name", "call", "known")))),
+                Util.pairOf(Scorer.NAME, stemPhrases(makePhrases(Util.setOf("name")))),
+                Util.pairOf(Scorer.LOCATION_PREPOSITION, stemPhrases(makePhrases(locationPrepositions))),
+                Util.pairOf(Scorer.FIRST_LAST_SINCE_AGO, stemPhrases(makePhrases(Util.setOf("first", "last", "since", "ago")))),
+                Util.pairOf(Scorer.START_BEGIN_SINCE_YEAR, stemPhrases(makePhrases(Util.setOf("start", "begin", "since", "year")))),
+                Util.pairOf(Scorer.WANT_SO_BECAUSE, stemPhrases(makePhrases(Util.setOf("want", "so", "because"))))));
+
+        questionCues = Collections.unmodifiableMap(Util.mapOf(
+                Util.pairOf(Scorer.MONTH, stemPhrases(monthNames)),
+                Util.pairOf(Scorer.KIND, stemPhrases(makePhrases(Util.setOf("kind")))),
+                Util.pairOf(Scorer.ASKS_NAME, stemPhrases(makePhrases(Util.setOf("name")))),
+                Util.pairOf(Scorer.THE_LAST, stemPhrases(Util.setOf(Util.listOf("the", "last")))),
+                Util.pairOf(Scorer.START_BEGIN, stemPhrases(makePhrases(Util.setOf("start", "begin")))),
+                Util.pairOf(Scorer.MUCH_MANY, stemPhrases(makePhrases(Util.setOf("much", "many"))))));
     }
 
     /**
@@ -81,319 +162,475 @@ public class Sherlock {
      * @return A map of the questions to the answers.
      */
     public Map<Story.Question, String> processStory(Story story) {
-        Map<Story.Question, String> questionAnswers = new HashMap<>();
-
-        // create an empty Annotation just with the given text
-        Annotation document = new Annotation(story.text);
-
-        // run all Annotators on this text
-        pipeline.annotate(document);
-
-        // these are all the sentences in this document
-        // a CoreMap is essentially a Map that uses class objects as keys and has values with custom types
-
-        // answer each question
-        for(Story.Question question : story.questions) {
-            // run the question through the pipeline
-            Annotation annotationObject = new Annotation(question.question);
-            pipeline.annotate(annotationObject);
-            CoreMap annotatedQuestion = getSentence(annotationObject, 0);
-
-            String questionType = getQuestionType(annotatedQuestion);
-
-            int bestSentence = findBestSentence(annotatedQuestion, document);
+        return answerQuestions(annotate(story.text), story.questions);
+    }
 
-            // Might remove everything
-            List<CoreLabel> filtered = applyNERFilter(questionType, document, bestSentence);
+    /**
+     * Answers a number of questions about a prepared document in parallel.
+     * @param document The document to find the answers in
+     * @param questions The questions to answer
+     * @return A map of the questions to the answers.
+     */
+    public Map<Story.Question, String> answerQuestions(PreparedDocument document, List<Story.Question> questions) {
+        // the document is read only from here on, so the questions can all be answered at once
+        List<ForkJoinTask<String>> answers = new ArrayList<>(questions.size());
+        for(Story.Question question : questions) {
+            answers.add(questionPool.submit(() -> answer(document, question)));
+        }
 
-            questionAnswers.put(question, rebuildSentence(filtered));
+        Map<Story.Question, String> questionAnswers = new HashMap<>();
+        for(int questionNum = 0; questionNum < answers.size(); questionNum++) {
+            questionAnswers.put(questions.get(questionNum), answers.get(questionNum).join());
         }
 
         return questionAnswers;
     }
 
     /**
-     * Finds the best sentence in the document by comparing bags of words in the question to bags of words of each
-     * sentence.
-     * @param question The question to compare with
-     * @param document All the sentences in the document
-     * @return The best sentence in the document
+     * Keeps prepared documents in a cache, so stories that come up again are not annotated again.
+     * @param documentCache The cache to use, or null to stop caching
      */
-    private int findBestSentence(CoreMap question, Annotation document) {
+    public void setDocumentCache(DocumentCache documentCache) {
+        this.documentCache = documentCache;
+    }
 
-        List<CoreMap> sentences = document.get(CoreAnnotations.SentencesAnnotation.class);
+    public DocumentCache getDocumentCache() {
+        return documentCache;
+    }
 
-        double bestScore = 0;
-        double bestSize = 0;
-        int bestIndex = -1;
-        for(int sentenceNum = 0; sentenceNum < sentences.size(); sentenceNum++) {
-            double score = getPointsByQuestionType(document, sentenceNum, question);
+    /**
+     * Keeps question plans in a cache, so questions that are asked again are not annotated again.
+     * @param questionCache The cache to use, or null to stop caching
+     */
+    public void setQuestionCache(QuestionCache questionCache) {
+        this.questionCache = questionCache;
+    }
 
-            int sentenceSize = replaceCorefMentions(document, sentenceNum).size();
-//            int sentenceSize = getTokens(getSentence(document, sentenceNum)).size();
+    public QuestionCache getQuestionCache() {
+        return questionCache;
+    }
 
-            // Prefer shorter sentences
-            if(score > bestScore ||
-                    (score == bestScore && sentenceSize < bestSize)) {
-                bestIndex = sentenceNum;
-                bestScore = score;
-                bestSize = sentenceSize;
-            }
-        }
+    /**
+     * Reserves an estimate of the heap each story needs before annotating it, so large stories wait for room instead
+     * of running out of memory.
+     * @param memoryBudget The budget to reserve against, or null to stop limiting annotation
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
 
-        return bestIndex;
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
     }
 
     /**
-     * Calculate intersection of bagged words to compute a score
-     * @param document All sentences
-     * @param sentenceNum The sentence to consider
-     * @param question The question to consider
-     * @return score
+     * @param rules The rules to score sentences with, like the ones in rules.txt
      */
-    private double getPointsByBagging(Annotation document, int sentenceNum, CoreMap question){
-        List<CoreLabel> tokensCopy = new ArrayList<>(getTokens(question));
-        tokensCopy.remove(0);
-        Set<String> questionBag = getBagOfWords(tokensCopy);
+    public void setRules(RuleSet rules) {
+        scorer.setRules(rules);
+    }
 
-        // Split into lists of verbs and not verbs
+    public RuleSet getRules() {
+        return scorer.getRules();
+    }
 
-        Util.Pair<List<CoreLabel>, List<CoreLabel>> verbNotVerb = getVerbsAndNotVerbs(replaceCorefMentions(document, sentenceNum));
-//        Util.Pair<List<CoreLabel>, List<CoreLabel>> verbNotVerb = getVerbsAndNotVerbs(getTokens(getSentence(document, sentenceNum)));
+    /**
+     * Counts how often each scoring rule fires and decides the answer, and how long the rules take.
+     * @param stats Where to keep the counts, or null to stop counting
+     */
+    public void setRuleStats(RuleStats stats) {
+        scorer.setStats(stats);
+    }
 
-        // Weigh the verbs higher than words that are not verbs, as per Ellen's paper
-        Set<String> verbIntersection = getBagOfWords(verbNotVerb.first());
-        Set<String> notVerbIntersection = getBagOfWords(verbNotVerb.second());
-        verbIntersection.retainAll(questionBag);
-        notVerbIntersection.retainAll(questionBag);
+    public RuleStats getRuleStats() {
+        return scorer.getStats();
+    }
 
-        return baggingWeight*(verbIntersection.size()*verbWeight + notVerbIntersection.size());
+    /**
+     * Sets how sentences that cannot hold an answer of the type the question asks for are scored.
+     * @param pruning The kind of pruning to do
+     */
+    public void setPruning(Scorer.Pruning pruning) {
+        scorer.setPruning(pruning);
+    }
+
+    public Scorer getScorer() {
+        return scorer;
     }
 
     /**
-     * Checks question type and calls the appropriate point generating function
-     * @param document All sentences
-     * @param sentenceNum The sentence to consider
-     * @param question The question to consider
-     * @return points for the sentence according to the type of question
-     */
-    private double getPointsByQuestionType(Annotation document, int sentenceNum, CoreMap question){
-        String questionType = getQuestionType(question);
-
-        switch (questionType) {
-            case "what":
-                return getPointsForWhat(document, sentenceNum, question);
-            case "who":
-            case "whose":
-            case "whom":
-                return getPointsForWho(document, sentenceNum, question);
-            case "where":
-                return getPointsForWhere(document, sentenceNum, question);
-            case "which":
-                return getPointsForWhich(document, sentenceNum, question);
-            case "when":
-                return getPointsForWhen(document, sentenceNum, question);
-            case "why":
-                return getPointsForWhy(document, sentenceNum, question);
-            case "how":
-                return getPointsForHow(document, sentenceNum, question);
-            default:
-                //System.out.println("Question type not found: " + questionType);
-                return getPointsByBagging(document, sentenceNum, question);
+     * Waits for room in the memory budget to annotate some text.
+     * @param text The text that is about to be annotated
+     * @return The reservation to close when the annotation is done, or null if there is no budget
+     */
+    private MemoryBudget.Reservation reserve(String text) {
+        MemoryBudget budget = memoryBudget;
+        if(budget == null)
+            return null;
+        try {
+            return budget.reserve(text, coref == Coref.DCOREF);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for room to annotate a story", e);
         }
     }
 
     /**
-     * Checks what sort of 'what' question it is, checks if the sentence matches and assigns points accordingly
-     * @param document All sentences
-     * @param sentenceNum The sentence to consider
-     * @param question The question to consider
-     * @return points for what
+     * Gives back room in the memory budget once an annotation is done.
+     * @param reservation The reservation from {@link #reserve}, which is null if there is no budget
      */
-    private double getPointsForWhat(Annotation document, int sentenceNum, CoreMap question) {
-        double score = getPointsByBagging(document, sentenceNum, question);
-        CoreMap sentence = getSentence(document, sentenceNum);
-
-        // If question contains month AND sentence contains today, yesterday, tomorrow, or last night, then it's a clue
-        if(sentenceContainsAny(monthNames, question) && sentenceContainsAny(days, sentence)){
-            score += clue;
-        }
+    private static void release(MemoryBudget.Reservation reservation) {
+        if(reservation != null)
+            reservation.close();
+    }
 
-        // If question contains kind AND sentence contains call or from, then it's a good clue
-        if(sentenceContainsAny(Util.setOf(Util.listOf("kind")), question)
-                && sentenceContainsAny(makePhrases(Util.setOf("call", "from")), sentence))
-            score += good_clue;
+    /**
+     * Runs a story through the pipeline and prepares it for scoring, unless it is already in the document cache.
+     * @param text The text of the story
+     * @return The prepared document
+     */
+    public PreparedDocument annotate(String text) {
+        DocumentCache cache = documentCache;
+        return cache == null ? annotateUncached(text) : cache.get(text, this::annotateUncached);
+    }
 
-        // If question contains name AND sentence contains name, call, or known, then it's a slam dunk
-        if(sentenceContainsAny(Util.setOf(Util.listOf("name")), question)
-                && sentenceContainsAny(makePhrases(Util.setOf("name", "call", "known")), sentence))
-            score += clue;
+    private PreparedDocument annotateUncached(String text) {
+        // create an empty Annotation just with the given text
+        Annotation annotation = new Annotation(text);
 
-        // If question contains name+PP AND sentence contains proper noun AND proper noun contains head(PP), then it's a slam dunk
-        // TODO: Finish this if
+        // run all Annotators on this text
+        MemoryBudget.Reservation reservation = reserve(text);
+        try {
+            pipeline.annotate(annotation);
+            if(coref == Coref.DCOREF)
+                corefPipeline.annotate(annotation);
+        } finally {
+            release(reservation);
+        }
 
-        return score;
+        return prepare(annotation);
     }
 
     /**
-     * Checks person information in sentence and question and and assigns points accordingly
-     * @param document All sentences
-     * @param sentenceNum The sentence to consider
-     * @param question The question to consider
-     * @return points for who
+     * Answers a single question about a prepared document.
+     * @param document The document to find the answer in
+     * @param question The question to answer
+     * @return The answer
      */
-    private double getPointsForWho(Annotation document, int sentenceNum, CoreMap question) {
-        double score = getPointsByBagging(document, sentenceNum, question);
-        CoreMap sentence = getSentence(document, sentenceNum);
-
-        // If question doesn't contain NAME AND sentence contains NAME, then we're confident
-        if(!containsNamedEntity(Util.setOf("PERSON", "ORGANIZATION"), question)
-                && containsNamedEntity(Util.setOf("PERSON", "ORGANIZATION"), sentence))
-            score += confident;
-
-        // If question doesn't contain NAME AND sentence contains name, then it's a good clue
-        if(!containsNamedEntity(Util.setOf("PERSON", "ORGANIZATION"), question)
-                && sentenceContainsAny(Util.setOf(Util.listOf("name")), sentence))
-            score += good_clue;
+    public String answer(PreparedDocument document, Story.Question question) {
+        QuestionPlan plan = plan(question);
 
-        // If sentence contains NAME or HUMAN, then it's a good clue
-        if(containsNamedEntity(Util.setOf("PERSON", "ORGANIZATION"), question))
-            score += good_clue;
-
-        return score;
+        double[] scores = new double[document.sentenceCount()];
+        return answer(document, plan, scorer.findBestSentence(document, plan, scratch.get(), scores));
     }
 
     /**
-     * Check for location key words and locations to assign points to sentence
-     * @param document All sentences
-     * @param sentenceNum The sentence to consider
-     * @param question The question to consider
-     * @return points for where
+     * Answers a single question about a prepared document, only running the rules on the sentences a vector index
+     * finds most similar to the question. This is for documents too long to score every sentence of.
+     * @param document The document to find the answer in
+     * @param question The question to answer
+     * @param index An index the document has been added to
+     * @param documentNum The number of the document in the index
+     * @param k The number of sentences to run the rules on
+     * @return The answer
      */
-    private double getPointsForWhere(Annotation document, int sentenceNum, CoreMap question) {
-        double score = getPointsByBagging(document, sentenceNum, question);
-        CoreMap sentence = getSentence(document, sentenceNum);
+    public String answer(PreparedDocument document, Story.Question question, VectorIndex index, int documentNum, int k) {
+        QuestionPlan plan = plan(question);
+
+        int[] rows = new int[k];
+        float[] similarity = new float[k];
+        int found = index.search(plan.terms, documentNum, k, rows, similarity);
+        int[] candidates = new int[found];
+        for(int i = 0; i < found; i++)
+            candidates[i] = index.sentence(rows[i]);
+        Arrays.sort(candidates);
+
+        double[] scores = new double[document.sentenceCount()];
+        return answer(document, plan, scorer.findBestSentence(document, plan, scratch.get(), candidates, found, scores));
+    }
 
-        // If sentence contains LocationPrep, good clue
-        if(sentenceContainsAny(makePhrases(locationPrepositions), sentence))
-            score += good_clue;
+    /**
+     * Pulls the answer out of the best sentence.
+     * @param document The document to find the answer in
+     * @param plan The plan of the question
+     * @param best The index of the best sentence, or -1 if there is none
+     * @return The answer, or an empty string if there is no best sentence
+     */
+    private String answer(PreparedDocument document, QuestionPlan plan, int best) {
+        if(best < 0)
+            return "";
 
-        // If sentence contains LOCATION, confident
-        if(containsNamedEntity(Util.setOf("LOCATION", "ORGANIZATION"), sentence))
-            score += confident;
+        // Might remove everything
+        int[] filtered = applyNERFilter(plan.answerFilter, document.tokens, best);
 
-        return score;
+        return document.tokens.rebuild(filtered);
     }
 
-    private double getPointsForWhich(Annotation document, int sentenceNum, CoreMap question) {
-        double score = getPointsByBagging(document, sentenceNum, question);
-        CoreMap sentence = getSentence(document, sentenceNum);
+    /**
+     * Gets the parse of a sentence, parsing it the first time it is asked for. Only the sentences picked as answers
+     * ever need a parse, so this is the only place parsing happens outside of dcoref. The trees dcoref makes are not
+     * kept, so a sentence is parsed again here if it is asked for.
+     * @param document The document the sentence is in
+     * @param sentenceNum The sentence to parse
+     * @return The parse tree of the sentence
+     */
+    public Tree getParse(PreparedDocument document, int sentenceNum) {
+        synchronized (document.parseLock) {
+            if(document.parse(sentenceNum) == null) {
+                // the parser annotator stores the tree on the sentence itself
+                CoreMap sentence = getSentence(document.tokens, sentenceNum);
+                Annotation single = new Annotation(sentence.get(CoreAnnotations.TextAnnotation.class));
+                single.set(CoreAnnotations.TokensAnnotation.class, getTokens(sentence));
+                single.set(CoreAnnotations.SentencesAnnotation.class, Collections.singletonList(sentence));
+                parsePipeline().annotate(single);
+                document.setParse(sentenceNum, sentence.get(TreeCoreAnnotations.TreeAnnotation.class));
+            }
+            return document.parse(sentenceNum);
+        }
+    }
 
-        if(containsNamedEntity(Util.setOf("PERSON", "ORGANIZATION"), sentence))
-            score += confident;
+    /**
+     * @return The pipeline that parses sentences that have already been through the main pipeline, loading the parser
+     *         model if this is the first time it is needed
+     */
+    private StanfordCoreNLP parsePipeline() {
+        StanfordCoreNLP parser = parsePipeline;
+        if(parser == null) {
+            synchronized (this) {
+                parser = parsePipeline;
+                if(parser == null) {
+                    Properties parseProps = new Properties();
+                    parseProps.put("annotators", "parse");
+                    parseProps.setProperty("enforceRequirements", "false");
+                    parser = new StanfordCoreNLP(parseProps);
+                    parsePipeline = parser;
+                }
+            }
+        }
+        return parser;
+    }
 
-        if(containsNamedEntity(Util.setOf("LOCATION"), sentence))
-            score += confident;
+    /**
+     * Computes the features of every sentence in an annotated document that the scoring rules look at. Only the
+     * columns in a {@link TokenStore} are kept, so the annotation can be thrown away afterwards.
+     * @param document The annotated document
+     * @return The document with its features
+     */
+    public PreparedDocument prepare(Annotation document) {
+        TokenStore tokens = new TokenStore();
+        store(tokens, document.get(CoreAnnotations.SentencesAnnotation.class), getMentionChains(document));
+        return prepare(tokens);
+    }
 
-        return score;
+    /**
+     * Computes the features of every sentence in a document that the scoring rules look at.
+     * @param tokens The tokens of the document
+     * @return The document with its features
+     */
+    public PreparedDocument prepare(TokenStore tokens) {
+        PreparedDocument document = new PreparedDocument(tokens);
+        addFeatures(document, tokens.chains());
+        return document;
     }
 
     /**
-     * Check time information to assign points to sentence
-     * @param document All sentences
-     * @param sentenceNum The sentence to consider
-     * @param question The question to consider
-     * @return points for when
+     * Makes an empty document for a story that arrives a piece at a time. See {@link #append}.
+     * @return A document with no sentences
      */
-    private double getPointsForWhen(Annotation document, int sentenceNum, CoreMap question) {
-        double score = getPointsByBagging(document, sentenceNum, question);
-        CoreMap sentence = getSentence(document, sentenceNum);
+    public PreparedDocument newDocument() {
+        return new PreparedDocument(new TokenStore());
+    }
 
-        // If sentence contains TIME, good_clue
-        if(containsNamedEntity(Util.setOf("DATE", "TIME"), sentence))
-            score += good_clue;
+    /**
+     * Adds more text to the end of a document, annotating only the new text. Co-referent mentions in the new sentences
+     * are found by running coreference over them and the few sentences before them, and the sentences already in the
+     * document keep the features they had. Questions can be answered about the document while this runs, and see the
+     * new sentences once it returns.
+     *
+     * The document is changed in place, so it has to be one only the caller holds: one from {@link #newDocument}, or
+     * from {@link #annotate} with no document cache. A document the cache has handed out is shared with every other
+     * request for the same text, and growing it would change their answers and the cache's accounting.
+     * @param document The document to add to
+     * @param text The new text, which should start at a sentence boundary
+     * @param corefWindow How many of the sentences already in the document to look for co-referent mentions in
+     * @return The index of the first new sentence
+     * @throws IllegalArgumentException If the document came from the document cache
+     */
+    public int append(PreparedDocument document, String text, int corefWindow) {
+        if(document.shared)
+            throw new IllegalArgumentException("The document came from the document cache, so it cannot grow. Start " +
+                                               "stories that grow with newDocument().");
+        synchronized (document) {
+            TokenStore tokens = document.tokens;
+            int firstNew = tokens.sentenceCount();
+            int windowStart = Math.max(0, firstNew - corefWindow);
+
+            Annotation annotation = new Annotation(text);
+            List<CoreMap> added;
+            List<MentionChain> windowChains;
+            // the reservation only covers the new text, which is most of what is annotated
+            MemoryBudget.Reservation reservation = reserve(text);
+            try {
+                pipeline.annotate(annotation);
+                added = annotation.get(CoreAnnotations.SentencesAnnotation.class);
+
+                // the window is made of the stored sentences, turned back into CoreNLP labels, then the new ones
+                List<CoreMap> window = new ArrayList<>();
+                for(int sentenceNum = windowStart; sentenceNum < firstNew; sentenceNum++)
+                    window.add(getSentence(tokens, sentenceNum));
+                window.addAll(added);
+                windowChains = getMentionChains(window);
+            } finally {
+                release(reservation);
+            }
 
-        // If question contains "the last" AND sentence contains first, last, since, or ago, slam_dunk
-        if(sentenceContainsAny(Util.setOf(Util.listOf("the", "last")), question) && sentenceContainsAny(makePhrases(Util.setOf("first", "last", "since", "ago")), sentence))
-            score += slam_dunk;
+            store(tokens, added, Collections.emptyList());
 
-        // If question contains start or begin AND sentence contains start, begin, since, or year, slam_dunk
-        if(sentenceContainsAny(makePhrases(Util.setOf("start", "begin")), question) && sentenceContainsAny(makePhrases(Util.setOf("start", "begin", "since", "year")), sentence))
-            score += slam_dunk;
+            // only chains that reach into the new sentences can change them
+            int firstChain = tokens.chainCount();
+            for(MentionChain chain : windowChains) {
+                List<MentionChain.Mention> mentions = new ArrayList<>(chain.mentions.size());
+                boolean reachesNew = false;
+                for(MentionChain.Mention mention : chain.mentions) {
+                    mentions.add(shift(mention, windowStart));
+                    reachesNew |= mention.sentence + windowStart >= firstNew;
+                }
+                if(reachesNew)
+                    tokens.addChain(new MentionChain(shift(chain.representative, windowStart), mentions));
+            }
 
-        return score;
+            addFeatures(document, tokens.chains(firstChain));
+            return firstNew;
+        }
     }
 
     /**
-     * Gets the n best words, then checks if sentence is in the best set/precedes best set/follows best set
-     * and assigns points accordingly
-     * @param document All sentences
-     * @param sentenceNum The sentence to consider
-     * @param question The question to consider
-     * @return points for why question
+     * Adds more text to the end of a document, and adds the new sentences to a vector index. The document has to be one
+     * only the caller holds, just like for {@link #append(PreparedDocument, String, int)}.
+     * @param document The document to add to
+     * @param text The new text, which should start at a sentence boundary
+     * @param corefWindow How many of the sentences already in the document to look for co-referent mentions in
+     * @param index The index the document is in
+     * @param documentNum The number of the document in the index
+     * @return The index of the first new sentence
+     * @throws IllegalArgumentException If the document came from the document cache
      */
-    private double getPointsForWhy(Annotation document, int sentenceNum, CoreMap question) {
-        double score = getPointsByBagging(document, sentenceNum, question);
-        CoreMap sentence = getSentence(document, sentenceNum);
-
-        // Get best
-        List<Util.Pair<Integer, Double>> scores = IntStream.range(0, document.get(CoreAnnotations.SentencesAnnotation.class).size()).boxed()
-                .map(i -> Util.pairOf(i, getPointsByBagging(document, i, question))).collect(Collectors.toList());
-
-        // Sort best to worst
-        scores.sort((left, right) -> left.second().compareTo(right.second()));
-
-        // Get the n best indices
-        Set<Integer> best = scores.stream().map(Util.Pair::first).limit(bestSetSizeWhy).collect(Collectors.toSet());
+    public int append(PreparedDocument document, String text, int corefWindow, VectorIndex index, int documentNum) {
+        synchronized (document) {
+            int firstNew = append(document, text, corefWindow);
+            index.add(documentNum, document, firstNew);
+            return firstNew;
+        }
+    }
 
-        // If S is an element of BEST or precedes a member of best, clue
-        if(best.contains(sentenceNum) || best.contains(sentenceNum+1))
-            score += clue;
+    private static MentionChain.Mention shift(MentionChain.Mention mention, int sentences) {
+        return new MentionChain.Mention(mention.sentence + sentences, mention.start, mention.end);
+    }
 
-        // If follows member of BEST, good clue
-        if(best.contains(sentenceNum-1))
-            score += good_clue;
+    /**
+     * Computes the features of the sentences in a document's token store that the document does not have yet.
+     * @param document The document to add the sentences to
+     * @param chains The co-referent mentions that can reach the new sentences
+     */
+    private void addFeatures(PreparedDocument document, List<MentionChain> chains) {
+        TokenStore tokens = document.tokens;
+        for(int sentenceNum = document.sentenceCount(); sentenceNum < tokens.sentenceCount(); sentenceNum++) {
+            int[] replaced = replaceCorefMentions(tokens, chains, sentenceNum);
+
+            // Split into lists of verbs and not verbs
+            Util.Pair<int[], int[]> verbNotVerb = getVerbsAndNotVerbs(tokens, replaced);
+            int[] verbTerms = getTermIds(getBagOfWords(tokens, verbNotVerb.first()), document);
+            int[] otherTerms = getTermIds(getBagOfWords(tokens, verbNotVerb.second()), document);
+
+            int start = tokens.sentenceStart(sentenceNum), end = tokens.sentenceEnd(sentenceNum);
+            document.addSentence(verbTerms, otherTerms, getEntities(tokens, start, end),
+                                 getCues(sentenceCues, getStems(tokens, start, end)), replaced.length);
+        }
+    }
 
-        // If S contains want, so, or because, then good clue
-        if(sentenceContainsAny(makePhrases(Util.setOf("want", "so", "because")), sentence))
-            score += good_clue;
+    /**
+     * Scores every sentence in a document against every question about it.
+     * @param document The prepared document
+     * @param questions The plans of the questions
+     * @return The scores, along with the best sentence for each question
+     */
+    public ScoreMatrix scoreStory(PreparedDocument document, List<QuestionPlan> questions) {
+        int sentenceCount = document.sentenceCount();
+        double[][] scores = new double[questions.size()][sentenceCount];
+        for(int questionNum = 0; questionNum < questions.size(); questionNum++) {
+            scorer.score(document, questions.get(questionNum), scratch.get(), scores[questionNum]);
+        }
+        return new ScoreMatrix(scores, Arrays.copyOf(document.sizes(), sentenceCount));
+    }
 
-        return score;
+    /**
+     * Works out what a question is asking, unless the same question is in the question cache.
+     * @param question The question to plan
+     * @return The plan for scoring sentences against the question
+     */
+    public QuestionPlan plan(Story.Question question) {
+        QuestionCache cache = questionCache;
+        return cache == null ? plan(question.question) : cache.get(question.question, this::plan);
     }
 
     /**
-     * Tobin's made up rule for how. If we have much or many, then sentences that contain money or percent are good
-     * @param document All sentences
-     * @param sentenceNum The sentence to consider
-     * @param question The question to consider
-     * @return points for how
+     * Runs a question through the pipeline and works out what it is asking.
+     * @param question The text of the question to plan
+     * @return The plan for scoring sentences against the question
      */
-    private double getPointsForHow(Annotation document, int sentenceNum, CoreMap question) {
-        double score = getPointsByBagging(document, sentenceNum, question);
-        CoreMap sentence = getSentence(document, sentenceNum);
+    public QuestionPlan plan(String question) {
+        Annotation annotationObject = new Annotation(question);
+        pipeline.annotate(annotationObject);
+        return plan(getSentence(annotationObject, 0));
+    }
 
-        if(sentenceContainsAny(makePhrases(Util.setOf("much", "many")), question)
-                && containsNamedEntity(Util.setOf("MONEY", "PERCENT"), sentence))
-            score += confident;
+    /**
+     * Works out what an annotated question is asking.
+     * @param question The annotated question
+     * @return The plan for scoring sentences against the question
+     */
+    public QuestionPlan plan(CoreMap question) {
+        TokenStore tokens = new TokenStore();
+        store(tokens, Collections.singletonList(question), Collections.emptyList());
+        String askingWord = getQuestionType(tokens);
+        int end = tokens.sentenceEnd(0);
+
+        return new QuestionPlan(QuestionPlan.Type.of(askingWord), getQuestionTerms(tokens),
+                                getCues(questionCues, getStems(tokens, 0, end)), getEntities(tokens, 0, end),
+                                nerFilter.get(askingWord));
+    }
 
-        return score;
+    /**
+     * Copies the columns the rules need out of some annotated sentences.
+     * @param tokens The store to add the sentences to
+     * @param sentences The annotated sentences
+     * @param chains The co-referent mentions in the sentences, relative to the sentences already in the store
+     */
+    private void store(TokenStore tokens, List<CoreMap> sentences, List<MentionChain> chains) {
+        for(CoreMap sentence : sentences) {
+            for(CoreLabel token : getTokens(sentence)) {
+                tokens.addToken(token.word(), token.get(CoreAnnotations.OriginalTextAnnotation.class),
+                        token.get(CoreAnnotations.BeforeAnnotation.class), token.get(CoreAnnotations.AfterAnnotation.class),
+                        token.get(CoreAnnotations.PartOfSpeechAnnotation.class),
+                        token.get(CoreAnnotations.NamedEntityTagAnnotation.class), stem(token.word()));
+            }
+            tokens.endSentence();
+        }
+        for(MentionChain chain : chains)
+            tokens.addChain(chain);
     }
 
     /**
      * Checks if any of a set of phrases exist in a sentence.
-     * @param phrases The phrases to check for
-     * @param sentence The sentence to check in
+     * @param phrases The stemmed phrases to check for
+     * @param stems The stemmed words of the sentence to check in
      * @return If any of the phrases were in the sentence
      */
-    private boolean sentenceContainsAny(Set<List<String>> phrases, CoreMap sentence){
-        List<String> tokens = getTokens(sentence).stream().map(this::stem).collect(Collectors.toList());
-
-        for(int tokenNum = 0; tokenNum < tokens.size(); tokenNum++){
+    private boolean sentenceContainsAny(Set<List<String>> phrases, List<String> stems){
+        for(int tokenNum = 0; tokenNum < stems.size(); tokenNum++){
             for(List<String> phrase : phrases){
-                if(tokens.size() >= tokenNum + phrase.size() &&
-                        tokens.subList(tokenNum, tokenNum+phrase.size()).equals(phrase.stream()
-                                .map(this::stem)
-                                .collect(Collectors.toList())))
+                if(stems.size() >= tokenNum + phrase.size() &&
+                        stems.subList(tokenNum, tokenNum+phrase.size()).equals(phrase))
                     return true;
             }
         }
@@ -402,16 +639,76 @@ public class Sherlock {
     }
 
     /**
-     * Checks inf a named entity tag exists in a sentence.
-     * @param nerTags The NER tags to check for
-     * @param sentence The sentence to check in
-     * @return If any of the words in the sentence were tagged with the given NER tags
+     * Finds which of a number of cue phrase sets appear in a sentence.
+     * @param cuePhrases The stemmed phrases of each cue, keyed by the bit for that cue
+     * @param stems The stemmed words of the sentence
+     * @return A bit set of the cues found
      */
-    private boolean containsNamedEntity(Set<String> nerTags, CoreMap sentence){
-        List<String> tokenNerTags = getTokens(sentence).stream().map(token -> token.get(CoreAnnotations.NamedEntityTagAnnotation.class))
-                .collect(Collectors.toList());
-        tokenNerTags.retainAll(nerTags);
-        return tokenNerTags.size() > 0;
+    private int getCues(Map<Integer, Set<List<String>>> cuePhrases, List<String> stems) {
+        int cues = 0;
+        for(Map.Entry<Integer, Set<List<String>>> cue : cuePhrases.entrySet()) {
+            if(sentenceContainsAny(cue.getValue(), stems))
+                cues |= cue.getKey();
+        }
+        return cues;
+    }
+
+    /**
+     * Finds the named entity types the rules care about in a run of tokens.
+     * @param tokens The tokens of the document
+     * @param start The first token to look at
+     * @param end One past the last token to look at
+     * @return A bit set of the named entity types found
+     */
+    private int getEntities(TokenStore tokens, int start, int end) {
+        int entities = 0;
+        for(int token = start; token < end; token++)
+            entities |= Scorer.entityBit(tokens.ner(token));
+        return entities;
+    }
+
+    /**
+     * Gets the terms in a question that are compared with the sentences.
+     * @param question The tokens of the question
+     * @return The stemmed words in the question, skipping the question word
+     */
+    private String[] getQuestionTerms(TokenStore question) {
+        int[] tokens = IntStream.range(1, question.sentenceEnd(0)).toArray();
+        return getBagOfWords(question, tokens).toArray(new String[0]);
+    }
+
+    /**
+     * Turns a bag of words into sorted term ids, assigning new ids as needed.
+     * @param bag The bag of words
+     * @param document The document the ids belong to
+     * @return The sorted ids of the words in the bag
+     */
+    private int[] getTermIds(Set<String> bag, PreparedDocument document) {
+        return bag.stream().mapToInt(document::internTerm).sorted().toArray();
+    }
+
+    /**
+     * Stems each phrase in a set.
+     * @param phrases The phrases to stem
+     * @return The stemmed phrases
+     */
+    private Set<List<String>> stemPhrases(Set<List<String>> phrases) {
+        return phrases.stream().map(phrase -> phrase.stream().map(this::stem).collect(Collectors.toList()))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Gets the stems of a run of tokens.
+     * @param tokens The tokens of the document
+     * @param start The first token
+     * @param end One past the last token
+     * @return The stemmed words, in order
+     */
+    private List<String> getStems(TokenStore tokens, int start, int end) {
+        List<String> stems = new ArrayList<>(end - start);
+        for(int token = start; token < end; token++)
+            stems.add(tokens.lemma(token));
+        return stems;
     }
 
     /**
@@ -433,6 +730,36 @@ public class Sherlock {
         return document.get(CoreAnnotations.SentencesAnnotation.class).get(index);
     }
 
+    /**
+     * Turns a sentence in a token store back into the labels CoreNLP annotators expect.
+     * @param document The tokens of the document
+     * @param index The index of the sentence to get
+     * @return A new annotated sentence with the stored word, text, white space and tags of each token
+     */
+    private CoreMap getSentence(TokenStore document, int index) {
+        int start = document.sentenceStart(index), end = document.sentenceEnd(index);
+        List<CoreLabel> labels = new ArrayList<>(end - start);
+        for(int token = start; token < end; token++) {
+            CoreLabel label = new CoreLabel();
+            label.setWord(document.word(token));
+            label.setValue(document.word(token));
+            label.setOriginalText(document.originalText(token));
+            label.setBefore(document.before(token));
+            label.setAfter(document.after(token));
+            label.setTag(document.pos(token));
+            label.setNER(document.ner(token));
+            label.setIndex(token - start + 1);
+            label.setSentIndex(index);
+            labels.add(label);
+        }
+
+        CoreMap sentence = new ArrayCoreMap();
+        sentence.set(CoreAnnotations.TextAnnotation.class, document.rebuild(IntStream.range(start, end).toArray()).trim());
+        sentence.set(CoreAnnotations.TokensAnnotation.class, labels);
+        sentence.set(CoreAnnotations.SentenceIndexAnnotation.class, index);
+        return sentence;
+    }
+
     /**
      * Get the tokens from the core map
      * @param annotatedSentence The sentence to the the tokens from
@@ -442,59 +769,86 @@ public class Sherlock {
         return annotatedSentence.get(CoreAnnotations.TokensAnnotation.class);
     }
 
-    /**
-     * Gets the stem of the given word.
-     * @param word The word to stem
-     * @return The stem of the word
-     */
-    private String stem(CoreLabel word){
-        return morph.stem(word.word());
-    }
-
     /**
      * Gets the stem of the given word.
      * @param word The word to stem
      * @return The stem of the word
      */
     private String stem(String word){
-        return morph.stem(word);
+        return morph.get().stem(word);
     }
 
     /**
      * Find the type of question asked by a given sentence
-     * @param question The question to look at
+     * @param question The tokens of the question
      * @return The type of the question. This is usually the first word of the question, ie. Why.
      */
-    private String getQuestionType(CoreMap question) {
-        Stream<String> words = getTokens(question).stream().map(word -> word.word().toLowerCase());
-        Stream<String> askingWords = words.filter(questionWords::contains);
+    private String getQuestionType(TokenStore question) {
+        IntStream tokens = IntStream.range(0, question.sentenceEnd(0));
+        Stream<String> askingWords = tokens.mapToObj(token -> question.word(token).toLowerCase()).filter(questionWords::contains);
         Optional<String> firstAsk = askingWords.findFirst();
 
-        return firstAsk.orElseGet(() -> getTokens(question).get(0).word());
+        return firstAsk.orElseGet(() -> question.word(0));
+    }
+
+    /**
+     * Finds the co-referent mentions in a document using whichever resolver this was set up with.
+     * @param document The annotated document
+     * @return The chains of co-referent mentions
+     */
+    private List<MentionChain> getMentionChains(Annotation document) {
+        switch (coref) {
+            case DCOREF:
+                return MentionChain.fromDcoref(document.get(CorefCoreAnnotations.CorefChainAnnotation.class));
+            case PRONOUNS:
+                return pronounResolver.resolve(document);
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Finds the co-referent mentions in some sentences that have only been through the main pipeline.
+     * @param sentences The annotated sentences
+     * @return The chains of co-referent mentions, with sentence indices relative to the list
+     */
+    private List<MentionChain> getMentionChains(List<CoreMap> sentences) {
+        if(coref == Coref.NONE)
+            return Collections.emptyList();
+
+        List<CoreLabel> allTokens = new ArrayList<>();
+        for(CoreMap sentence : sentences)
+            allTokens.addAll(getTokens(sentence));
+
+        Annotation document = new Annotation(Sherlock.rebuildSentence(allTokens));
+        document.set(CoreAnnotations.SentencesAnnotation.class, sentences);
+        document.set(CoreAnnotations.TokensAnnotation.class, allTokens);
+        if(coref == Coref.DCOREF)
+            corefPipeline.annotate(document);
+        return getMentionChains(document);
     }
 
     /**
      * Gets a sentence where all co-referent mentions are replaced with their representative mention.
      * @param document The document to use
+     * @param chains The co-referent mentions in the document
      * @param sentenceIndex The index of the sentence to do stuff with.
-     * @return The sentence with replaced mentions
+     * @return The indices of the tokens in the sentence with replaced mentions
      */
-    private List<CoreLabel> replaceCorefMentions(Annotation document, int sentenceIndex) {
-        Collection<CorefChain> chains = document.get(CorefCoreAnnotations.CorefChainAnnotation.class).values();
-
-        List<Util.Pair<Util.Pair<Integer, Integer>, List<CoreLabel>>> toReplace = Util.listOf();
+    private int[] replaceCorefMentions(TokenStore document, List<MentionChain> chains, int sentenceIndex) {
+        List<Util.Pair<Util.Pair<Integer, Integer>, int[]>> toReplace = Util.listOf();
 
         // Find all replacements we might have to do
-        for(CorefChain chain : chains) {
-            CorefChain.CorefMention representative = chain.getRepresentativeMention();
+        for(MentionChain chain : chains) {
+            MentionChain.Mention representative = chain.representative;
 
-            if(representative.sentNum - 1 == sentenceIndex)
+            if(representative.sentence == sentenceIndex)
                 continue;
 
-            for(CorefChain.CorefMention mention : chain.getMentionsInTextualOrder()) {
-                if(mention.sentNum - 1 == sentenceIndex) {
-                    List<CoreLabel> tokens = getTokensBetween(document, representative.sentNum - 1, representative.startIndex - 1, representative.endIndex - 1);
-                    toReplace.add(Util.pairOf(Util.pairOf(mention.startIndex - 1, mention.endIndex - 1), tokens));
+            for(MentionChain.Mention mention : chain.mentions) {
+                if(mention.sentence == sentenceIndex) {
+                    int[] tokens = getTokensBetween(document, representative.sentence, representative.start, representative.end);
+                    toReplace.add(Util.pairOf(Util.pairOf(mention.start, mention.end), tokens));
                 }
             }
         }
@@ -502,18 +856,21 @@ public class Sherlock {
         // sort by start index
         toReplace.sort((a, b) -> a.first().first().compareTo(b.first().first())); //////// WUT
 
-        List<CoreLabel> sentence = getTokens(getSentence(document, sentenceIndex));
+        int sentenceStart = document.sentenceStart(sentenceIndex);
+        int sentenceSize = document.sentenceEnd(sentenceIndex) - sentenceStart;
 
 
         // Build the new sentence
         if(toReplace.isEmpty()) {
-            return sentence;
+            return getTokensBetween(document, sentenceIndex, 0, sentenceSize);
         }
         else {
-            List<CoreLabel> output = new ArrayList<>(sentence.subList(0, toReplace.get(0).first().first()));
+            IntStream.Builder output = IntStream.builder();
+            addRange(output, sentenceStart, 0, toReplace.get(0).first().first());
 
             while (!toReplace.isEmpty()) {
-                output.addAll(toReplace.get(0).second());
+                for(int token : toReplace.get(0).second())
+                    output.add(token);
 
                 // Remove all replacements that overlap with this one
                 while(toReplace.size() > 1 && toReplace.get(1).first().first() < toReplace.get(0).first().second())
@@ -521,63 +878,72 @@ public class Sherlock {
 
                 // Add the tokens in between this one and the next one
                 if(toReplace.size() == 1) {
-                    output.addAll(sentence.subList(toReplace.get(0).first().second(), sentence.size()));
+                    addRange(output, sentenceStart, toReplace.get(0).first().second(), sentenceSize);
                 }
                 else {
-                    output.addAll(sentence.subList(toReplace.get(0).first().second(), toReplace.get(1).first().first()));
+                    addRange(output, sentenceStart, toReplace.get(0).first().second(), toReplace.get(1).first().first());
                 }
 
                 toReplace.remove(0);
             }
 
-            return output;
+            return output.build().toArray();
         }
     }
 
+    /**
+     * Adds the indices of a run of tokens in a sentence to a stream.
+     */
+    private static void addRange(IntStream.Builder output, int sentenceStart, int start, int end) {
+        for(int token = start; token < end; token++)
+            output.add(sentenceStart + token);
+    }
+
     /**
      * Gets some tokens from a sentence in a document
      * @param document All sentences
      * @param sentenceNumber The sentence number to extract tokens from
      * @param start The token start index
      * @param end The token end index
-     * @return A chunk of the tokens in the sentence
+     * @return The indices of a chunk of the tokens in the sentence
      */
-    private List<CoreLabel> getTokensBetween(Annotation document, int sentenceNumber, int start, int end) {
-        return getTokens(getSentence(document, sentenceNumber)).subList(start, end);
+    private int[] getTokensBetween(TokenStore document, int sentenceNumber, int start, int end) {
+        int sentenceStart = document.sentenceStart(sentenceNumber);
+        return IntStream.range(sentenceStart + start, sentenceStart + end).toArray();
     }
 
     /**
-     * Applies a filter to a sentence based on the NER tags of the tokens. Does nothing if the given key was not found.
-     * @param key The key to use when looking for an NER filter
+     * Applies a filter to a sentence based on the NER tags of the tokens. Does nothing if there is no filter.
+     * @param filter The NER tags to keep, or null to keep everything
      * @param document The whole document
      * @param sentenceNumber The sentence to filter
-     * @return All the words matching the allowed annotations, or the sentence if the key was not valid
-     */
-    private List<CoreLabel> applyNERFilter(String key, Annotation document, int sentenceNumber) {
-        if(nerFilter.containsKey(key)) {
-            List<CoreLabel> original = getTokens(getSentence(document, sentenceNumber)).stream()
-                    .filter(token -> {
-                        String nerTag = token.get(CoreAnnotations.NamedEntityTagAnnotation.class);
-                        return nerFilter.get(key).contains(nerTag);
-                    }).collect(Collectors.toList());
-
-            if(original.isEmpty())
-                return getTokens(getSentence(document, sentenceNumber));
+     * @return The indices of all the words matching the allowed annotations, or of the sentence if there was no filter
+     */
+    private int[] applyNERFilter(Set<String> filter, TokenStore document, int sentenceNumber) {
+        int start = document.sentenceStart(sentenceNumber), end = document.sentenceEnd(sentenceNumber);
+        if(filter != null) {
+            int[] original = IntStream.range(start, end).filter(token -> filter.contains(document.ner(token))).toArray();
+
+            if(original.length == 0)
+                return IntStream.range(start, end).toArray();
             else
                 return original;
         }
         else {
-            return getTokens(getSentence(document, sentenceNumber));
+            return IntStream.range(start, end).toArray();
         }
     }
 
     /**
      * Turns a list of tokens into a set of strings.
-     * @param sentence The tokens to bag
+     * @param document The tokens of the document
+     * @param sentence The indices of the tokens to bag
      * @return the bag of words
      */
-    private Set<String> getBagOfWords(List<CoreLabel> sentence) {
-        Set<String> bagOfWords = sentence.stream().map(this::stem).collect(Collectors.toSet());
+    private Set<String> getBagOfWords(TokenStore document, int[] sentence) {
+        Set<String> bagOfWords = new HashSet<>();
+        for(int token : sentence)
+            bagOfWords.add(document.lemma(token));
 
         // Remove all stop words from the bag
         bagOfWords.removeAll(stopWords);
@@ -599,22 +965,23 @@ public class Sherlock {
 
     /**
      * Returns a pair of lists: the tokens that are verbs and the tokens that are not verbs, respectively.
-     * @param sentence - the sentence tokens plus the coreference tokens
+     * @param document The tokens of the document
+     * @param sentence - the indices of the sentence tokens plus the coreference tokens
      * @return A pair of all the verbs in the sentence, and all the other words in the sentence
      */
-    private Util.Pair<List<CoreLabel>, List<CoreLabel>> getVerbsAndNotVerbs(List<CoreLabel> sentence){
-        List<CoreLabel> verbs = Util.listOf();
-        List<CoreLabel> notVerbs = Util.listOf();
+    private Util.Pair<int[], int[]> getVerbsAndNotVerbs(TokenStore document, int[] sentence){
+        IntStream.Builder verbs = IntStream.builder();
+        IntStream.Builder notVerbs = IntStream.builder();
 
         // Get words that match our verb tags, and not
-        for(CoreLabel word : sentence){
-            if(verbTags.contains(word.get(CoreAnnotations.PartOfSpeechAnnotation.class)))
+        for(int word : sentence){
+            if(verbTags.contains(document.pos(word)))
                 verbs.add(word);
             else
                 notVerbs.add(word);
         }
 
-        return Util.pairOf(verbs, notVerbs);
+        return Util.pairOf(verbs.build().toArray(), notVerbs.build().toArray());
     }
 
 
@@ -0,0 +1,449 @@
+package cs.utah.sherlock;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Sherlock for embedding in a service. Every method returns a future right away, and the CoreNLP work runs on the
+ * engine's own threads: one pool annotates stories and another answers questions, so questions about stories that are
+ * already annotated do not wait behind a long annotation. Even loading the models can be done in the background with
+ * {@link #start}.
+ *
+ * Annotated stories are kept by ID, up to a limit, so more questions can be asked about them later. Any future the
+ * engine returns can be cancelled, and calls can be given a timeout, after which the future fails with a
+ * {@link TimeoutException}. Giving up on a future drops the work behind it if it has not started and interrupts it if it
+ * has, except that a story's annotation keeps going as long as any other caller is still waiting for it.
+ * @author Tobin Yehle
+ */
+public class SherlockEngine implements AutoCloseable {
+    /**
+     * A story that has been submitted, and its annotation.
+     */
+    private static class Submission {
+        final String text;
+        final CompletableFuture<PreparedDocument> document;
+        // the number of callers still waiting for the document
+        int waiters;
+
+        Submission(String text, CompletableFuture<PreparedDocument> document) {
+            this.text = text;
+            this.document = document;
+        }
+    }
+
+    private final Sherlock sherlock;
+    private final ExecutorService annotators;
+    private final ExecutorService scorers;
+    private final ScheduledExecutorService timer;
+
+    private volatile int retainedStories = 1000;
+    private final Map<String, Submission> stories = new LinkedHashMap<String, Submission>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Submission> eldest) {
+            return size() > retainedStories;
+        }
+    };
+
+    private volatile long timeoutNanos;
+    private volatile boolean shutdown;
+    // everything running on the pools, so it can be cancelled if the engine is closed
+    private final Set<CompletableFuture<?>> running = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong annotations = new AtomicLong();
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * @param sherlock The object that answers the questions, already set up with any caches, rules or budget
+     * @param annotators The number of stories to annotate at once
+     * @param scorers The number of stories or questions to answer at once
+     */
+    public SherlockEngine(Sherlock sherlock, int annotators, int scorers) {
+        if(annotators < 1 || scorers < 1)
+            throw new IllegalArgumentException("The engine needs at least one annotating and one answering thread");
+        this.sherlock = sherlock;
+        this.annotators = Executors.newFixedThreadPool(annotators, daemon("sherlock-engine-annotate"));
+        this.scorers = Executors.newFixedThreadPool(scorers, daemon("sherlock-engine-answer"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemon("sherlock-engine-timer"));
+    }
+
+    /**
+     * Loads the CoreNLP models on a thread of its own and makes an engine around them.
+     * @param stopWordsFile The file of words to leave out of bags of words
+     * @param coref How to find co-referent mentions
+     * @param annotators The number of stories to annotate at once
+     * @param scorers The number of stories or questions to answer at once
+     * @return The engine, once the models are loaded
+     */
+    public static CompletableFuture<SherlockEngine> start(String stopWordsFile, Sherlock.Coref coref, int annotators,
+                                                          int scorers) {
+        CompletableFuture<SherlockEngine> engine = new CompletableFuture<>();
+        Thread loader = new Thread(() -> {
+            try {
+                engine.complete(new SherlockEngine(new Sherlock(stopWordsFile, coref), annotators, scorers));
+            } catch (Throwable e) {
+                // running out of memory or missing a class while loading the models is the likeliest way this fails,
+                // and the caller has to hear about it
+                engine.completeExceptionally(e);
+            }
+        }, "sherlock-engine-load");
+        loader.setDaemon(true);
+        loader.start();
+        return engine;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicLong count = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Sets the timeout for calls that are not given one.
+     * @param timeout The timeout, or 0 to wait as long as it takes
+     * @param unit The unit of the timeout
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Sets how many annotated stories to keep for questions. The ones asked about least recently are dropped first.
+     * @param retainedStories The number of stories to keep
+     */
+    public void setRetainedStories(int retainedStories) {
+        this.retainedStories = retainedStories;
+    }
+
+    public Sherlock getSherlock() {
+        return sherlock;
+    }
+
+    /**
+     * Annotates a story and keeps it, so questions can be asked about it with {@link #answer}. A story submitted again
+     * with the same ID and text is only annotated once.
+     * @param story The story
+     * @return A future that completes once the story is annotated
+     */
+    public CompletableFuture<Void> submit(Story story) {
+        return submit(story, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Annotates a story and keeps it, giving up after a timeout.
+     * @param story The story
+     * @param timeout How long to wait for the annotation, or 0 to wait as long as it takes
+     * @param unit The unit of the timeout
+     * @return A future that completes once the story is annotated
+     */
+    public CompletableFuture<Void> submit(Story story, long timeout, TimeUnit unit) {
+        if(shutdown)
+            return shutDown();
+        return after(await(submission(story)), null, document -> null, unit.toNanos(timeout));
+    }
+
+    /**
+     * Answers a question about a story that has already been submitted. If the story is still being annotated, the
+     * question is answered once it is done.
+     * @param storyId The ID of the story
+     * @param question The question
+     * @return The answer, or a failed future if the story was never submitted or has been dropped
+     */
+    public CompletableFuture<String> answer(String storyId, Story.Question question) {
+        return answer(storyId, question, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Answers a question about a story that has already been submitted, giving up after a timeout.
+     * @param storyId The ID of the story
+     * @param question The question
+     * @param timeout How long to wait for the answer, or 0 to wait as long as it takes
+     * @param unit The unit of the timeout
+     * @return The answer, or a failed future if the story was never submitted or has been dropped
+     */
+    public CompletableFuture<String> answer(String storyId, Story.Question question, long timeout, TimeUnit unit) {
+        if(shutdown)
+            return shutDown();
+        Submission submission;
+        synchronized (stories) {
+            submission = stories.get(storyId);
+        }
+        if(submission == null) {
+            CompletableFuture<String> missing = new CompletableFuture<>();
+            missing.completeExceptionally(new NoSuchElementException("Story " + storyId + " has not been submitted"));
+            return missing;
+        }
+        return after(await(submission), scorers, document -> {
+            String answer = sherlock.answer(document, question);
+            answered.incrementAndGet();
+            return answer;
+        }, unit.toNanos(timeout));
+    }
+
+    /**
+     * Submits a story and answers all of its questions.
+     * @param story The story
+     * @return The answer to each question
+     */
+    public CompletableFuture<Map<Story.Question, String>> answerStory(Story story) {
+        return answerStory(story, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Submits a story and answers all of its questions, giving up after a timeout.
+     * @param story The story
+     * @param timeout How long to wait for the answers, annotation included, or 0 to wait as long as it takes
+     * @param unit The unit of the timeout
+     * @return The answer to each question
+     */
+    public CompletableFuture<Map<Story.Question, String>> answerStory(Story story, long timeout, TimeUnit unit) {
+        if(shutdown)
+            return shutDown();
+        return after(await(submission(story)), scorers, document -> {
+            Map<Story.Question, String> answers = sherlock.answerQuestions(document, story.questions);
+            answered.addAndGet(answers.size());
+            return answers;
+        }, unit.toNanos(timeout));
+    }
+
+    /**
+     * Stops and forgets a story. Callers waiting for its annotation get a cancelled future.
+     * @param storyId The ID of the story
+     */
+    public void forget(String storyId) {
+        Submission submission;
+        synchronized (stories) {
+            submission = stories.remove(storyId);
+        }
+        if(submission != null)
+            submission.document.cancel(true);
+    }
+
+    /**
+     * Finds the submission for a story, starting its annotation if it has not been submitted before.
+     */
+    private Submission submission(Story story) {
+        synchronized (stories) {
+            Submission submission = stories.get(story.id);
+            if(submission != null && submission.text.equals(story.text) &&
+                    !submission.document.isCompletedExceptionally())
+                return submission;
+
+            CompletableFuture<PreparedDocument> document = run(annotators, () -> {
+                PreparedDocument prepared = sherlock.annotate(story.text);
+                annotations.incrementAndGet();
+                return prepared;
+            });
+            Submission started = new Submission(story.text, document);
+            stories.put(story.id, started);
+            // a failed or cancelled annotation is not kept, so submitting the story again tries again
+            document.whenComplete((prepared, error) -> {
+                if(error != null) {
+                    synchronized (stories) {
+                        stories.remove(story.id, started);
+                    }
+                }
+            });
+            return started;
+        }
+    }
+
+    /**
+     * Gives a caller a future of its own for a story's document. Giving up on it cancels the annotation only if no one
+     * else is waiting for it.
+     */
+    private CompletableFuture<PreparedDocument> await(Submission submission) {
+        CompletableFuture<PreparedDocument> mine = new CompletableFuture<>();
+        synchronized (submission) {
+            submission.waiters++;
+        }
+        mine.whenComplete((document, error) -> {
+            boolean last;
+            synchronized (submission) {
+                last = --submission.waiters == 0;
+            }
+            if(error != null && last)
+                submission.document.cancel(true);
+        });
+        forward(submission.document, mine);
+        return mine;
+    }
+
+    /**
+     * Does something with a document once it is ready. Giving up on the result gives up on the document, and
+     * interrupts the task if it has started.
+     * @param document The caller's future for the document
+     * @param pool Where to run the task, or null to run it on whichever thread finished the document
+     * @param task The work to do with the document
+     * @param timeoutNanos How long to wait for the result, or 0 to wait as long as it takes
+     */
+    private <T> CompletableFuture<T> after(CompletableFuture<PreparedDocument> document, ExecutorService pool,
+                                           Function<PreparedDocument, T> task, long timeoutNanos) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        document.whenComplete((prepared, error) -> {
+            if(error != null) {
+                result.completeExceptionally(error);
+            }
+            else if(pool == null) {
+                result.complete(task.apply(prepared));
+            }
+            else {
+                CompletableFuture<T> working = run(pool, () -> task.apply(prepared));
+                forward(working, result);
+                result.whenComplete((value, resultError) -> {
+                    if(resultError != null)
+                        working.cancel(true);
+                });
+            }
+        });
+        result.whenComplete((value, error) -> {
+            if(error != null)
+                document.cancel(true);
+            if(result.isCancelled())
+                cancelled.incrementAndGet();
+            else if(error instanceof TimeoutException)
+                timedOut.incrementAndGet();
+        });
+        return withTimeout(result, timeoutNanos);
+    }
+
+    /**
+     * Runs a task on a pool. Cancelling the future drops the task if it has not started and interrupts it if it has.
+     */
+    private <T> CompletableFuture<T> run(ExecutorService pool, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            Future<?> work = pool.submit(() -> {
+                if(result.isDone())
+                    return;
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            running.add(result);
+            result.whenComplete((value, error) -> {
+                running.remove(result);
+                if(error != null)
+                    work.cancel(true);
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IllegalStateException("The engine has been shut down"));
+        }
+        return result;
+    }
+
+    /**
+     * Fails a future with a {@link TimeoutException} if it is not done in time.
+     */
+    private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeoutNanos) {
+        if(timeoutNanos <= 0 || future.isDone())
+            return future;
+        try {
+            ScheduledFuture<?> timeout = timer.schedule(() -> future.completeExceptionally(
+                    new TimeoutException("Gave up after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms")),
+                    timeoutNanos, TimeUnit.NANOSECONDS);
+            future.whenComplete((value, error) -> timeout.cancel(false));
+        } catch (RejectedExecutionException e) {
+            // the engine is closing, and everything still running is about to be cancelled anyway
+        }
+        return future;
+    }
+
+    /**
+     * Completes one future the same way as another.
+     */
+    private static <T> void forward(CompletableFuture<T> from, CompletableFuture<T> to) {
+        from.whenComplete((value, error) -> {
+            if(error != null)
+                to.completeExceptionally(error);
+            else
+                to.complete(value);
+        });
+    }
+
+    private static <T> CompletableFuture<T> shutDown() {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException("The engine has been shut down"));
+        return future;
+    }
+
+    /**
+     * Stops taking new work, and lets the work already submitted finish.
+     * @return A future that completes once all the work is done and the threads have stopped
+     */
+    public CompletableFuture<Void> shutdown() {
+        shutdown = true;
+        CompletableFuture<Void> stopped = new CompletableFuture<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                // annotations that finish hand their questions to the answering pool, so it has to stay open until
+                // the annotating is over
+                annotators.shutdown();
+                annotators.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                scorers.shutdown();
+                scorers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                timer.shutdownNow();
+                stopped.complete(null);
+            } catch (InterruptedException e) {
+                stopped.completeExceptionally(e);
+            }
+        }, "sherlock-engine-shutdown");
+        waiter.setDaemon(true);
+        waiter.start();
+        return stopped;
+    }
+
+    /**
+     * Stops at once. Work that is running is interrupted, and every future that is not done yet is cancelled.
+     */
+    @Override
+    public void close() {
+        shutdown = true;
+        // cancelled before the threads are interrupted, so the futures are not failed by the interrupts instead
+        for(CompletableFuture<?> future : new ArrayList<>(running))
+            future.cancel(true);
+        annotators.shutdownNow();
+        scorers.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * @return The number of stories that were annotated
+     */
+    public long annotations() {
+        return annotations.get();
+    }
+
+    /**
+     * @return The number of questions that were answered
+     */
+    public long answered() {
+        return answered.get();
+    }
+
+    public long cancelled() {
+        return cancelled.get();
+    }
+
+    public long timedOut() {
+        return timedOut.get();
+    }
+
+    @Override
+    public String toString() {
+        int retained;
+        synchronized (stories) {
+            retained = stories.size();
+        }
+        return String.format("engine: %d stories annotated, %d kept, %d questions answered, %d calls cancelled, " +
+                             "%d timed out", annotations(), retained, answered(), cancelled(), timedOut());
+    }
+}
@@ -0,0 +1,283 @@
+package cs.utah.sherlock;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares a fixed number of threads running {@link Sherlock#processStory} between interactive requests and bulk jobs.
+ * Interactive stories always go ahead of bulk ones, so an interactive request only ever waits for the stories already
+ * running to finish, and bulk stories use whatever capacity is left. Within each class the tenants share the threads by
+ * start time fair queuing, weighted by the amount of text in each story, so one tenant with a big manifest does not
+ * hold up the others.
+ * @author Tobin Yehle
+ */
+public class StoryScheduler {
+    public enum Priority {
+        INTERACTIVE, BULK
+    }
+
+    /**
+     * A story waiting to be run.
+     */
+    private static class Request {
+        final Story story;
+        final Priority priority;
+        final double start;
+        final long sequence;
+        final long submitted = System.nanoTime();
+        final CompletableFuture<Map<Story.Question, String>> result = new CompletableFuture<>();
+
+        Request(Story story, Priority priority, double start, long sequence) {
+            this.story = story;
+            this.priority = priority;
+            this.start = start;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * The queue of one priority class, ordered by virtual start time.
+     */
+    private static class ClassQueue {
+        final PriorityQueue<Request> waiting = new PriorityQueue<>(
+                Comparator.<Request>comparingDouble(r -> r.start).thenComparingLong(r -> r.sequence));
+        /** The finish tag of the last story each tenant submitted */
+        final Map<String, Double> finish = new HashMap<>();
+        double virtualTime;
+    }
+
+    /**
+     * A histogram of durations in power of two buckets of microseconds, which is coarse but never grows.
+     */
+    public static class Timings {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray totals = new AtomicLongArray(2);
+
+        void add(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            counts.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+            totals.incrementAndGet(0);
+            totals.addAndGet(1, nanos);
+        }
+
+        public long count() {
+            return totals.get(0);
+        }
+
+        /**
+         * @return The mean duration in milliseconds
+         */
+        public double mean() {
+            long count = count();
+            return count > 0 ? totals.get(1) / 1e6 / count : 0;
+        }
+
+        /**
+         * @param fraction The fraction of durations that should be at or below the result
+         * @return An upper bound on that percentile in milliseconds, to within a factor of two
+         */
+        public double percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count());
+            long seen = 0;
+            for(int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts.get(bucket);
+                if(seen >= rank && seen > 0)
+                    return (2L << bucket) / 1e3;
+            }
+            return 0;
+        }
+    }
+
+    private final Sherlock sherlock;
+    private final List<Thread> workers = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final EnumMap<Priority, ClassQueue> queues = new EnumMap<>(Priority.class);
+    private final Map<String, Double> weights = new HashMap<>();
+    private long sequence;
+    private boolean shutdown;
+
+    private final EnumMap<Priority, Timings> queueWait = new EnumMap<>(Priority.class);
+    private final EnumMap<Priority, Timings> service = new EnumMap<>(Priority.class);
+
+    /**
+     * @param sherlock The object that answers the questions
+     * @param threads The number of stories to run at once
+     */
+    public StoryScheduler(Sherlock sherlock, int threads) {
+        if(threads < 1)
+            throw new IllegalArgumentException("The scheduler needs at least one thread");
+        this.sherlock = sherlock;
+        for(Priority priority : Priority.values()) {
+            queues.put(priority, new ClassQueue());
+            queueWait.put(priority, new Timings());
+            service.put(priority, new Timings());
+        }
+
+        for(int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "sherlock-scheduler-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Sets the share of the threads a tenant gets relative to the others in the same class. Tenants start with a weight
+     * of one.
+     * @param tenant The tenant
+     * @param weight The weight, which must be positive
+     */
+    public void setWeight(String tenant, double weight) {
+        if(weight <= 0)
+            throw new IllegalArgumentException("Weights must be positive");
+        lock.lock();
+        try {
+            weights.put(tenant, weight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a story to have its questions answered.
+     * @param story The story
+     * @param tenant Who the story is for, which is what the threads are shared fairly between
+     * @param priority The class of the request
+     * @return The answers, once the story has run
+     */
+    public CompletableFuture<Map<Story.Question, String>> submit(Story story, String tenant, Priority priority) {
+        lock.lock();
+        try {
+            if(shutdown)
+                throw new IllegalStateException("The scheduler has been shut down");
+
+            // the cost of a story is mostly annotating its text
+            ClassQueue queue = queues.get(priority);
+            double cost = story.text.length() + 1;
+            double start = Math.max(queue.virtualTime, queue.finish.getOrDefault(tenant, 0.0));
+            queue.finish.put(tenant, start + cost / weights.getOrDefault(tenant, 1.0));
+
+            Request request = new Request(story, priority, start, sequence++);
+            queue.waiting.add(request);
+            available.signal();
+            return request.result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next story to run, blocking until there is one.
+     * @return The request, or null once the scheduler is shut down and every queue is empty
+     */
+    private Request next() throws InterruptedException {
+        lock.lock();
+        try {
+            while(true) {
+                for(Priority priority : Priority.values()) {
+                    ClassQueue queue = queues.get(priority);
+                    Request request = queue.waiting.poll();
+                    if(request != null) {
+                        queue.virtualTime = request.start;
+                        if(queue.waiting.isEmpty())
+                            // everyone is caught up, so old finish tags no longer matter
+                            queue.finish.clear();
+                        return request;
+                    }
+                }
+                if(shutdown)
+                    return null;
+                available.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        try {
+            for(Request request = next(); request != null; request = next()) {
+                long start = System.nanoTime();
+                queueWait.get(request.priority).add(start - request.submitted);
+                try {
+                    request.result.complete(sherlock.processStory(request.story));
+                } catch (Throwable e) {
+                    // even an Error has to reach the caller, or it waits on the story forever
+                    request.result.completeExceptionally(e);
+                }
+                service.get(request.priority).add(System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops taking new stories. The ones already queued still run.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for every queued story to run after a {@link #shutdown}.
+     * @param timeout The longest to wait
+     * @param unit The unit of the timeout
+     * @return True if every story ran
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(Thread worker : workers) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining > 0)
+                worker.join(Math.max(1, remaining / 1_000_000));
+            if(worker.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return How long stories of a class waited before they started running
+     */
+    public Timings queueWait(Priority priority) {
+        return queueWait.get(priority);
+    }
+
+    /**
+     * @return How long stories of a class took to run
+     */
+    public Timings serviceTime(Priority priority) {
+        return service.get(priority);
+    }
+
+    /**
+     * @return A table of the queue wait and service time of each class, in milliseconds
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-12s %-8s %8s %10s %10s %10s %10s%n",
+                "class", "time", "stories", "mean ms", "p50 ms", "p99 ms", "max ms"));
+        for(Priority priority : Priority.values()) {
+            for(Timings timings : Util.listOf(queueWait(priority), serviceTime(priority))) {
+                report.append(String.format("%-12s %-8s %8d %10.2f %10.2f %10.2f %10.2f%n",
+                        priority.name().toLowerCase(), timings == queueWait(priority) ? "wait" : "service",
+                        timings.count(), timings.mean(), timings.percentile(0.5), timings.percentile(0.99),
+                        timings.percentile(1)));
+            }
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,363 @@
+package cs.utah.sherlock;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Where the stories in a manifest are read from. The first line of a manifest names either a directory of story files,
+ * each of which may be gzipped, or a .tar, .tar.gz, .tgz or .zip archive of them. Either way the rest of the manifest
+ * is story IDs, and a story's files are found by their names without the extension, wherever they are in the archive.
+ *
+ * Archives are decompressed by whichever thread reads from them, which in a {@link BatchPipeline} is its read thread,
+ * so decompressing the next stories overlaps annotating the last ones.
+ * @author Tobin Yehle
+ */
+public abstract class StorySource implements Closeable {
+    private static final List<String> EXTENSIONS = Util.listOf("story", "questions", "answers");
+
+    /**
+     * Reads a story, printing an error if it cannot be read.
+     * @param id The ID of the story
+     * @return The story, or null if it could not be read
+     */
+    public abstract Story read(String id);
+
+    @Override
+    public void close() throws IOException {}
+
+    /**
+     * Opens the stories a manifest points to.
+     * @param prefix The directory or archive, as returned by {@link Driver#readManifestFile}
+     * @param ids The IDs of the stories that will be read, so an archive can skip the rest, or null to keep them all
+     * @return A source of the stories
+     */
+    public static StorySource open(String prefix, Collection<String> ids) throws IOException {
+        File file = new File(prefix);
+        String name = file.getName().toLowerCase();
+        Set<String> wanted = ids == null ? null : new HashSet<>(ids);
+        if(file.isFile() && name.endsWith(".zip"))
+            return new Zip(file);
+        if(file.isFile() && (name.endsWith(".tar.gz") || name.endsWith(".tgz")))
+            return new Tar(new GZIPInputStream(new FileInputStream(file), 1 << 16), wanted);
+        if(file.isFile() && name.endsWith(".tar"))
+            return new Tar(new BufferedInputStream(new FileInputStream(file), 1 << 16), wanted);
+        return new Directory(prefix);
+    }
+
+    /**
+     * Splits the name of a file in an archive into the story ID and the extension.
+     * @return The ID and the extension, or null if it is not a story file
+     */
+    private static Util.Pair<String, String> storyFile(String entryName) {
+        String fileName = entryName.substring(entryName.lastIndexOf('/') + 1);
+        int dot = fileName.lastIndexOf('.');
+        if(dot <= 0 || !EXTENSIONS.contains(fileName.substring(dot + 1)))
+            return null;
+        return Util.pairOf(fileName.substring(0, dot), fileName.substring(dot + 1));
+    }
+
+    /**
+     * Builds a story from the contents of its files, preferring the answers file to the questions file just like
+     * {@link Driver#readStory}.
+     * @param id The ID of the story
+     * @param files The contents of each of the story's files, by extension
+     */
+    private static Story fromFiles(String id, Map<String, String> files) {
+        if(!files.containsKey("story")) {
+            System.err.println(id + ".story is not in the archive");
+            return null;
+        }
+
+        List<Story.Question> questions;
+        if(files.containsKey("answers"))
+            questions = Driver.readQuestions(new Scanner(files.get("answers")), true);
+        else if(files.containsKey("questions"))
+            questions = Driver.readQuestions(new Scanner(files.get("questions")), false);
+        else {
+            System.err.println(id + ".questions is not in the archive");
+            questions = new ArrayList<>();
+        }
+        return Driver.readStory(new Scanner(files.get("story")), questions);
+    }
+
+    /**
+     * Reads all of a stream as text in the platform charset, which is what a scanner over a file would use.
+     */
+    private static String readAll(InputStream in, long size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(0, Math.min(size, 1 << 20)));
+        byte[] buffer = new byte[8192];
+        for(int read = in.read(buffer); read >= 0; read = in.read(buffer))
+            out.write(buffer, 0, read);
+        return new String(out.toByteArray(), Charset.defaultCharset());
+    }
+
+    /**
+     * Story files in a directory, as they have always been read.
+     */
+    private static class Directory extends StorySource {
+        private final String prefix;
+
+        Directory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Story read(String id) {
+            return Driver.readStory(prefix + id);
+        }
+    }
+
+    /**
+     * Story files in a zip archive. The central directory says where every file is, so each story is read only when
+     * it is asked for.
+     */
+    private static class Zip extends StorySource {
+        private final ZipFile zip;
+        private final Map<String, Map<String, ZipEntry>> entries = new HashMap<>();
+
+        Zip(File file) throws IOException {
+            zip = new ZipFile(file);
+            for(Enumeration<? extends ZipEntry> all = zip.entries(); all.hasMoreElements(); ) {
+                ZipEntry entry = all.nextElement();
+                Util.Pair<String, String> idExtension = entry.isDirectory() ? null : storyFile(entry.getName());
+                if(idExtension != null)
+                    entries.computeIfAbsent(idExtension.first(), id -> new HashMap<>())
+                           .put(idExtension.second(), entry);
+            }
+        }
+
+        @Override
+        public Story read(String id) {
+            Map<String, String> files = new HashMap<>();
+            try {
+                for(Map.Entry<String, ZipEntry> file : entries.getOrDefault(id, Collections.emptyMap()).entrySet()) {
+                    try(InputStream in = zip.getInputStream(file.getValue())) {
+                        files.put(file.getKey(), readAll(in, file.getValue().getSize()));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                return null;
+            }
+            return fromFiles(id, files);
+        }
+
+        @Override
+        public void close() throws IOException {
+            zip.close();
+        }
+    }
+
+    /**
+     * Story files in a tar archive, which may be gzipped. A tar archive has no index, so it is read front to back as
+     * stories are asked for, and the files of stories that are further along in the archive than the one asked for are
+     * kept until they are asked for too.
+     *
+     * A story is ready once its story file and its answers file have been read, or its story file and its questions
+     * file and then a file from another story. Archives with each story's files next to each other, like the ones
+     * {@code tar --sort=name} makes from a corpus directory, are read exactly like the directory. If an answers file turns up after
+     * its story was already read from the questions file, a warning is printed.
+     */
+    private static class Tar extends StorySource {
+        private static final int BLOCK = 512;
+
+        private final InputStream in;
+        private final Set<String> wanted;
+        private final Map<String, Map<String, String>> pending = new HashMap<>();
+        private final Set<String> done = new HashSet<>();
+        private final byte[] header = new byte[BLOCK];
+        // the ID of the story the last file belonged to
+        private String lastId;
+        private boolean ended;
+
+        Tar(InputStream in, Set<String> wanted) {
+            this.in = in;
+            this.wanted = wanted;
+        }
+
+        @Override
+        public synchronized Story read(String id) {
+            try {
+                while(!ended && !ready(id))
+                    readEntry();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                ended = true;
+            }
+            done.add(id);
+            return fromFiles(id, pending.containsKey(id) ? pending.remove(id) : Collections.emptyMap());
+        }
+
+        private boolean ready(String id) {
+            Map<String, String> files = pending.get(id);
+            if(files == null || !files.containsKey("story"))
+                return false;
+            return files.containsKey("answers") || (files.containsKey("questions") && !id.equals(lastId));
+        }
+
+        /**
+         * Reads the next file in the archive, keeping it if it belongs to a story that will be asked for.
+         */
+        private void readEntry() throws IOException {
+            String longName = null;
+            while(true) {
+                if(!readBlock(header) || isZero(header)) {
+                    ended = true;
+                    return;
+                }
+
+                String name = longName != null ? longName : field(0, 100);
+                String prefix = field(345, 155);
+                if(longName == null && field(257, 6).startsWith("ustar") && !prefix.isEmpty())
+                    name = prefix + "/" + name;
+                long size = Long.parseLong(field(124, 12).trim().isEmpty() ? "0" : field(124, 12).trim(), 8);
+                char type = (char) header[156];
+
+                // a GNU long name or a pax header holds the name of the next file
+                if(type == 'L') {
+                    longName = readData(size).trim();
+                    continue;
+                }
+                if(type == 'x') {
+                    String path = paxPath(readData(size));
+                    if(path != null)
+                        longName = path;
+                    continue;
+                }
+
+                Util.Pair<String, String> idExtension = type == '0' || type == '\0' ? storyFile(name) : null;
+                if(idExtension == null || (wanted != null && !wanted.contains(idExtension.first()))) {
+                    skip(size);
+                    return;
+                }
+
+                String id = idExtension.first();
+                lastId = id;
+                if(done.contains(id)) {
+                    if(idExtension.second().equals("answers"))
+                        System.err.println("WARNING: " + name + " came after story " + id + " was read from its " +
+                                           "questions file, so its answers were ignored");
+                    skip(size);
+                    return;
+                }
+                pending.computeIfAbsent(id, key -> new HashMap<>()).put(idExtension.second(), readData(size));
+                return;
+            }
+        }
+
+        /**
+         * Reads the data of a file and the padding after it.
+         */
+        private String readData(long size) throws IOException {
+            String data = readAll(new BoundedStream(in, size), size);
+            skipFully(padding(size));
+            return data;
+        }
+
+        private void skip(long size) throws IOException {
+            skipFully(size + padding(size));
+        }
+
+        private static long padding(long size) {
+            return (BLOCK - size % BLOCK) % BLOCK;
+        }
+
+        private void skipFully(long count) throws IOException {
+            while(count > 0) {
+                long skipped = in.skip(count);
+                if(skipped <= 0) {
+                    if(in.read() < 0)
+                        throw new EOFException("The tar archive ends in the middle of a file");
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        private boolean readBlock(byte[] block) throws IOException {
+            int read = 0;
+            while(read < block.length) {
+                int count = in.read(block, read, block.length - read);
+                if(count < 0)
+                    return false;
+                read += count;
+            }
+            return true;
+        }
+
+        private static boolean isZero(byte[] block) {
+            for(byte b : block) {
+                if(b != 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return A header field, up to its first NUL
+         */
+        private String field(int offset, int length) {
+            int end = offset;
+            while(end < offset + length && header[end] != 0)
+                end++;
+            return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Finds the path in a pax header, whose records look like "27 path=some/long/name.story\n".
+         */
+        private static String paxPath(String records) {
+            for(String record : records.split("\n")) {
+                int start = record.indexOf(" path=");
+                if(start >= 0)
+                    return record.substring(start + " path=".length());
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * The first few bytes of a stream, for reading one file out of a tar archive.
+     */
+    private static class BoundedStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedStream(InputStream in, long size) {
+            this.in = in;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(remaining <= 0)
+                return -1;
+            int b = in.read();
+            if(b < 0)
+                throw new EOFException("The tar archive ends in the middle of a file");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if(remaining <= 0)
+                return -1;
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if(read < 0)
+                throw new EOFException("The tar archive ends in the middle of a file");
+            remaining -= read;
+            return read;
+        }
+    }
+}
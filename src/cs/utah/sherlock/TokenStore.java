@@ -0,0 +1,359 @@
+package cs.utah.sherlock;
+
+import java.util.*;
+
+/**
+ * The parts of an annotated document that answering questions needs, stored column by column. All the token text is
+ * kept in one char buffer, tags are byte codes into small per document tables, and co-referent mentions are a flat
+ * table of spans. This takes a small fraction of the memory of the CoreNLP annotation it is built from, so the
+ * annotation can be let go as soon as the store is built.
+ *
+ * A store can keep growing as sentences are appended to a document. Only one thread may append at a time, but other
+ * threads can read the sentences that were there before the append started while it runs.
+ * @author Tobin Yehle
+ */
+public class TokenStore {
+    // the text fields stored for each token, in the order they are laid out in the buffer
+    private static final int BEFORE = 0, ORIGINAL = 1, WORD = 2, AFTER = 3, FIELDS = 4;
+
+    private char[] text = new char[256];
+    private int textLength;
+    /** Where each field of each token starts in the text buffer. A field ends where the next one starts. */
+    private int[] offsets = new int[64 * FIELDS + 1];
+    private byte[] pos = new byte[64], ner = new byte[64];
+    private int[] lemmas = new int[64];
+    private final CodeTable posCodes = new CodeTable(256), nerCodes = new CodeTable(256);
+    private final CodeTable lemmaCodes = new CodeTable(Integer.MAX_VALUE);
+    private volatile int tokenCount;
+
+    private int[] sentenceStarts = new int[8];
+    private volatile int sentenceCount;
+
+    /** The mentions of chain i are mentions[chainStarts[i]] up to mentions[chainStarts[i + 1]] */
+    private int[] chainStarts = new int[8];
+    /** The sentence, start and end of each chain's representative mention */
+    private int[] representatives = new int[8 * 3];
+    /** The sentence, start and end of each mention */
+    private int[] mentions = new int[16 * 3];
+    private int mentionCount;
+    private volatile int chainCount;
+
+    /**
+     * Makes an empty store. Use a {@link Builder} to fill in a whole document at once.
+     */
+    public TokenStore() {
+    }
+
+    public int tokenCount() {
+        return tokenCount;
+    }
+
+    public int sentenceCount() {
+        return sentenceCount;
+    }
+
+    /**
+     * @param sentence The index of a sentence
+     * @return The index of the first token in the sentence
+     */
+    public int sentenceStart(int sentence) {
+        return sentenceStarts[sentence];
+    }
+
+    /**
+     * @param sentence The index of a sentence
+     * @return The index one past the last token in the sentence
+     */
+    public int sentenceEnd(int sentence) {
+        return sentenceStarts[sentence + 1];
+    }
+
+    /**
+     * @return The white space before a token
+     */
+    public String before(int token) {
+        return field(token, BEFORE);
+    }
+
+    /**
+     * @return The token as it appeared in the text
+     */
+    public String originalText(int token) {
+        return field(token, ORIGINAL);
+    }
+
+    /**
+     * @return The token as the tokenizer normalized it
+     */
+    public String word(int token) {
+        return field(token, WORD);
+    }
+
+    /**
+     * @return The white space after a token
+     */
+    public String after(int token) {
+        return field(token, AFTER);
+    }
+
+    public String pos(int token) {
+        return posCodes.name(pos[token] & 0xff);
+    }
+
+    public String ner(int token) {
+        return nerCodes.name(ner[token] & 0xff);
+    }
+
+    /**
+     * @return The stem of a token
+     */
+    public String lemma(int token) {
+        return lemmaCodes.name(lemmas[token]);
+    }
+
+    /**
+     * @return An id for the stem of a token, which is the same for every token with the same stem
+     */
+    public int lemmaId(int token) {
+        return lemmas[token];
+    }
+
+    /**
+     * Appends a field of a token to a string without copying it out of the buffer first.
+     */
+    private void appendField(StringBuilder out, int token, int field) {
+        int start = offsets[token * FIELDS + field];
+        out.append(text, start, offsets[token * FIELDS + field + 1] - start);
+    }
+
+    private String field(int token, int field) {
+        int start = offsets[token * FIELDS + field];
+        return new String(text, start, offsets[token * FIELDS + field + 1] - start);
+    }
+
+    /**
+     * Rebuilds text from some of the tokens, the same way {@link Sherlock#rebuildSentence} does.
+     * @param tokens The indices of the tokens, in order
+     * @return The white space before the first token followed by each token, the white space after it and a space
+     */
+    public String rebuild(int[] tokens) {
+        StringBuilder out = new StringBuilder();
+        appendField(out, tokens[0], BEFORE);
+        for(int token : tokens) {
+            appendField(out, token, ORIGINAL);
+            appendField(out, token, AFTER);
+            out.append(' ');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return The chains of co-referent mentions in the document
+     */
+    public List<MentionChain> chains() {
+        return chains(0);
+    }
+
+    /**
+     * @param fromChain The first chain to get
+     * @return The chains of co-referent mentions in the document that were added after some number of chains
+     */
+    public List<MentionChain> chains(int fromChain) {
+        int count = chainCount;
+        List<MentionChain> chains = new ArrayList<>(Math.max(0, count - fromChain));
+        for(int chain = fromChain; chain < count; chain++) {
+            List<MentionChain.Mention> chainMentions = new ArrayList<>(chainStarts[chain + 1] - chainStarts[chain]);
+            for(int mention = chainStarts[chain]; mention < chainStarts[chain + 1]; mention++)
+                chainMentions.add(new MentionChain.Mention(mentions[mention * 3], mentions[mention * 3 + 1], mentions[mention * 3 + 2]));
+            MentionChain.Mention representative = new MentionChain.Mention(representatives[chain * 3],
+                    representatives[chain * 3 + 1], representatives[chain * 3 + 2]);
+            chains.add(new MentionChain(representative, chainMentions));
+        }
+        return chains;
+    }
+
+    /**
+     * @return The number of chains of co-referent mentions
+     */
+    public int chainCount() {
+        return chainCount;
+    }
+
+    /**
+     * @return Roughly how many bytes of heap this store takes up
+     */
+    public long estimatedBytes() {
+        long bytes = 12 * 16;
+        bytes += 16 + 2L * text.length;
+        bytes += 16 + 4L * (offsets.length + lemmas.length + sentenceStarts.length + chainStarts.length +
+                            representatives.length + mentions.length);
+        bytes += 32 + pos.length + ner.length;
+        for(CodeTable table : Arrays.asList(posCodes, nerCodes, lemmaCodes))
+            bytes += table.estimatedBytes();
+        return bytes;
+    }
+
+    /**
+     * Adds a token to the end of the last sentence, which is not visible until the sentence is ended.
+     */
+    void addToken(String word, String originalText, String before, String after, String pos, String ner, String lemma) {
+        int token = tokenCount;
+        if(token == lemmas.length) {
+            int capacity = 2 * lemmas.length;
+            offsets = Arrays.copyOf(offsets, capacity * FIELDS + 1);
+            this.pos = Arrays.copyOf(this.pos, capacity);
+            this.ner = Arrays.copyOf(this.ner, capacity);
+            lemmas = Arrays.copyOf(lemmas, capacity);
+        }
+
+        int base = token * FIELDS;
+        offsets[base + BEFORE] = textLength;
+        appendText(before);
+        offsets[base + ORIGINAL] = textLength;
+        appendText(originalText);
+        offsets[base + WORD] = textLength;
+        appendText(word);
+        offsets[base + AFTER] = textLength;
+        appendText(after);
+        offsets[base + FIELDS] = textLength;
+
+        this.pos[token] = (byte) posCodes.code(pos);
+        this.ner[token] = (byte) nerCodes.code(ner);
+        lemmas[token] = lemmaCodes.code(lemma);
+        tokenCount = token + 1;
+    }
+
+    private void appendText(String value) {
+        if(value == null)
+            return;
+        if(textLength + value.length() > text.length)
+            text = Arrays.copyOf(text, Math.max(2 * text.length, textLength + value.length()));
+        value.getChars(0, value.length(), text, textLength);
+        textLength += value.length();
+    }
+
+    /**
+     * Ends the last sentence. The tokens added since the sentence before it ended make up the sentence.
+     */
+    void endSentence() {
+        int sentence = sentenceCount;
+        if(sentence + 1 >= sentenceStarts.length)
+            sentenceStarts = Arrays.copyOf(sentenceStarts, 2 * sentenceStarts.length);
+        sentenceStarts[sentence + 1] = tokenCount;
+        // publish the sentence last so readers only ever see whole sentences
+        sentenceCount = sentence + 1;
+    }
+
+    /**
+     * Adds a chain of co-referent mentions, with indices relative to the sentences in this store.
+     */
+    void addChain(MentionChain chain) {
+        int chainNum = chainCount;
+        if(chainNum + 1 >= chainStarts.length) {
+            chainStarts = Arrays.copyOf(chainStarts, 2 * chainStarts.length);
+            representatives = Arrays.copyOf(representatives, chainStarts.length * 3);
+        }
+        putMention(representatives, chainNum, chain.representative);
+
+        for(MentionChain.Mention mention : chain.mentions) {
+            if(mentionCount * 3 == mentions.length)
+                mentions = Arrays.copyOf(mentions, 2 * mentions.length);
+            putMention(mentions, mentionCount, mention);
+            mentionCount++;
+        }
+        chainStarts[chainNum + 1] = mentionCount;
+        chainCount = chainNum + 1;
+    }
+
+    private static void putMention(int[] table, int index, MentionChain.Mention mention) {
+        table[index * 3] = mention.sentence;
+        table[index * 3 + 1] = mention.start;
+        table[index * 3 + 2] = mention.end;
+    }
+
+    /**
+     * Gives each distinct string a small integer code.
+     */
+    private static class CodeTable {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private String[] names = new String[16];
+        private int size;
+        private final int limit;
+
+        CodeTable(int limit) {
+            this.limit = limit;
+        }
+
+        int code(String name) {
+            Integer code = codes.get(name);
+            if(code == null) {
+                if(size == limit)
+                    throw new IllegalStateException("More than " + limit + " distinct values in a column");
+                if(size == names.length)
+                    names = Arrays.copyOf(names, 2 * size);
+                code = size;
+                names[size++] = name;
+                codes.put(name, code);
+            }
+            return code;
+        }
+
+        String name(int code) {
+            return names[code];
+        }
+
+        long estimatedBytes() {
+            long bytes = 16 + 4L * names.length + 48L * size;
+            for(int i = 0; i < size; i++)
+                bytes += names[i] == null ? 0 : 40 + 2L * names[i].length();
+            return bytes;
+        }
+    }
+
+    /**
+     * Collects a document token by token. Tokens are added to the current sentence until it is ended.
+     */
+    public static class Builder {
+        private final TokenStore store = new TokenStore();
+
+        /**
+         * Adds a token to the current sentence.
+         * @param word The normalized token
+         * @param originalText The token as it appeared in the text
+         * @param before The white space before the token
+         * @param after The white space after the token
+         * @param pos The part of speech tag
+         * @param ner The named entity tag
+         * @param lemma The stem of the token
+         * @return This builder
+         */
+        public Builder addToken(String word, String originalText, String before, String after, String pos, String ner,
+                                String lemma) {
+            store.addToken(word, originalText, before, after, pos, ner, lemma);
+            return this;
+        }
+
+        /**
+         * Ends the current sentence. The tokens added since the last sentence ended make up the sentence.
+         * @return This builder
+         */
+        public Builder endSentence() {
+            store.endSentence();
+            return this;
+        }
+
+        /**
+         * Adds a chain of co-referent mentions.
+         * @param chain The chain, with indices relative to the sentences added to this builder
+         * @return This builder
+         */
+        public Builder addChain(MentionChain chain) {
+            store.addChain(chain);
+            return this;
+        }
+
+        public TokenStore build() {
+            return store;
+        }
+    }
+}
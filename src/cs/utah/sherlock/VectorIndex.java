@@ -0,0 +1,300 @@
+package cs.utah.sherlock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Finds the sentences most similar to a question without comparing bags of words with every sentence. Each sentence
+ * is a fixed length vector of term weights, with stemmed terms hashed into the dimensions, stored in flat float
+ * buffers outside the heap, optionally mapped to a file. The weights are term frequencies scaled to unit length, and
+ * the question terms are weighted by inverse document frequency when searching, so sentences can be added at any time
+ * without reweighting the ones already stored.
+ *
+ * Searching can run alongside adding. Sentences are visible to searches once {@link #add} returns.
+ * @author Tobin Yehle
+ */
+public class VectorIndex implements Closeable {
+    // rows are kept in segments of about 4MB, so the index can grow without copying and no one buffer gets too big
+    private static final int FLOATS_PER_SEGMENT = 1 << 20;
+    private static final int INITIAL_SEGMENTS = 4;
+
+    private final int dimension;
+    private final int mask;
+    private final int rowsPerSegment;
+    private final FileChannel channel;
+
+    private volatile FloatBuffer[] segments = new FloatBuffer[INITIAL_SEGMENTS];
+    private volatile int rowCount;
+    private int[] rowDocuments = new int[64], rowSentences = new int[64];
+    // the rows of each document, which are only contiguous if the whole document was added at once
+    private int[][] documentRows = new int[16][];
+    private int[] documentRowCounts = new int[16];
+    private int documentCount;
+
+    /** The number of sentences each dimension has a nonzero weight in */
+    private final int[] documentFrequency;
+
+    /**
+     * Makes an index that keeps its vectors in direct buffers.
+     * @param dimension The length of each vector. This is rounded up to a power of two.
+     */
+    public VectorIndex(int dimension) {
+        this.dimension = Integer.highestOneBit(Math.max(1, dimension - 1)) << 1;
+        this.mask = this.dimension - 1;
+        this.rowsPerSegment = Math.max(1, FLOATS_PER_SEGMENT / this.dimension);
+        this.channel = null;
+        this.documentFrequency = new int[this.dimension];
+    }
+
+    /**
+     * Makes an index that keeps its vectors in a memory mapped file, so it can be bigger than the heap. The file is
+     * overwritten.
+     * @param dimension The length of each vector. This is rounded up to a power of two.
+     * @param file The file to map
+     */
+    @SuppressWarnings("resource")
+    public VectorIndex(int dimension, File file) throws IOException {
+        this.dimension = Integer.highestOneBit(Math.max(1, dimension - 1)) << 1;
+        this.mask = this.dimension - 1;
+        this.rowsPerSegment = Math.max(1, FLOATS_PER_SEGMENT / this.dimension);
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.channel.truncate(0);
+        this.documentFrequency = new int[this.dimension];
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * @return The number of sentences in the index
+     */
+    public int size() {
+        return rowCount;
+    }
+
+    public synchronized int documentCount() {
+        return documentCount;
+    }
+
+    /**
+     * Adds every sentence in a document.
+     * @param document The prepared document
+     * @return The number the document is known by in this index
+     */
+    public int add(PreparedDocument document) {
+        int documentNum = newDocument();
+        add(documentNum, document, 0);
+        return documentNum;
+    }
+
+    /**
+     * Starts a new document with no sentences.
+     * @return The number the document is known by in this index
+     */
+    public synchronized int newDocument() {
+        if(documentCount == documentRows.length) {
+            documentRows = Arrays.copyOf(documentRows, 2 * documentCount);
+            documentRowCounts = Arrays.copyOf(documentRowCounts, 2 * documentCount);
+        }
+        documentRows[documentCount] = new int[16];
+        return documentCount++;
+    }
+
+    /**
+     * Adds the sentences of a document from some sentence on, for documents that grow over time.
+     * @param documentNum The number of the document in this index
+     * @param document The prepared document
+     * @param fromSentence The first sentence to add
+     */
+    public synchronized void add(int documentNum, PreparedDocument document, int fromSentence) {
+        float[] vector = new float[dimension];
+        for(int sentenceNum = fromSentence; sentenceNum < document.sentenceCount(); sentenceNum++) {
+            Arrays.fill(vector, 0);
+            // verbs count for more, just as they do when bagging
+            for(int term : document.verbTerms(sentenceNum))
+                vector[bucket(document.term(term))] += 2;
+            for(int term : document.otherTerms(sentenceNum))
+                vector[bucket(document.term(term))] += 1;
+
+            double length = 0;
+            for(float weight : vector)
+                length += weight * weight;
+            length = Math.sqrt(length);
+
+            int row = rowCount;
+            FloatBuffer segment = segment(row / rowsPerSegment);
+            int base = (row % rowsPerSegment) * dimension;
+            for(int i = 0; i < dimension; i++) {
+                if(vector[i] != 0)
+                    documentFrequency[i]++;
+                segment.put(base + i, length > 0 ? (float) (vector[i] / length) : 0);
+            }
+
+            if(row == rowDocuments.length) {
+                rowDocuments = Arrays.copyOf(rowDocuments, 2 * row);
+                rowSentences = Arrays.copyOf(rowSentences, 2 * row);
+            }
+            rowDocuments[row] = documentNum;
+            rowSentences[row] = sentenceNum;
+
+            int[] rows = documentRows[documentNum];
+            int count = documentRowCounts[documentNum];
+            if(count == rows.length)
+                documentRows[documentNum] = rows = Arrays.copyOf(rows, 2 * count);
+            rows[count] = row;
+            documentRowCounts[documentNum] = count + 1;
+
+            // publish the row last so searches never see a half written vector
+            rowCount = row + 1;
+        }
+    }
+
+    /**
+     * Gets a segment, allocating it if this is the first row in it.
+     */
+    private FloatBuffer segment(int index) {
+        FloatBuffer[] current = segments;
+        if(index < current.length && current[index] != null)
+            return current[index];
+
+        if(index >= current.length)
+            current = Arrays.copyOf(current, 2 * current.length);
+
+        long bytes = (long) rowsPerSegment * dimension * 4;
+        ByteBuffer buffer;
+        try {
+            buffer = channel == null ? ByteBuffer.allocateDirect((int) bytes) :
+                     channel.map(FileChannel.MapMode.READ_WRITE, index * bytes, bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not grow the index file", e);
+        }
+        current[index] = buffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        segments = current;
+        return current[index];
+    }
+
+    /**
+     * Finds the sentences in the whole index most similar to some terms.
+     * @param terms The stemmed question terms
+     * @param k The most sentences to find
+     * @param rows Where to put the rows found, most similar first. Use {@link #document} and {@link #sentence} to
+     *             find which sentence a row is.
+     * @param scores Where to put the similarity of each row found
+     * @return The number of rows found
+     */
+    public int search(String[] terms, int k, int[] rows, float[] scores) {
+        return search(terms, -1, k, rows, scores);
+    }
+
+    /**
+     * Finds the sentences in one document most similar to some terms.
+     * @param terms The stemmed question terms
+     * @param documentNum The document to search in, or -1 for all of them
+     * @param k The most sentences to find
+     * @param rows Where to put the rows found, most similar first. Ties go to the earlier row.
+     * @param scores Where to put the similarity of each row found
+     * @return The number of rows found
+     */
+    public int search(String[] terms, int documentNum, int k, int[] rows, float[] scores) {
+        if(k <= 0)
+            return 0;
+
+        // the question only has a handful of terms, so only the dimensions they hash to are read
+        int[] buckets = new int[terms.length];
+        float[] weights = new float[terms.length];
+        int queryLength = 0;
+
+        // everything read from the index is taken under one lock, so the rows searched are all in the segments
+        // searched, even while add is running
+        int rowLimit;
+        FloatBuffer[] current;
+        int[] candidates;
+        int candidateCount;
+        synchronized (this) {
+            rowLimit = rowCount;
+            current = segments;
+            candidates = documentNum < 0 ? null : documentRows[documentNum];
+            candidateCount = documentNum < 0 ? rowLimit : documentRowCounts[documentNum];
+
+            for(String term : terms) {
+                int bucket = bucket(term);
+                int i = 0;
+                while(i < queryLength && buckets[i] != bucket)
+                    i++;
+                if(i == queryLength) {
+                    buckets[queryLength++] = bucket;
+                    weights[i] = 0;
+                }
+                weights[i] += (float) (Math.log((rowLimit + 1.0) / (documentFrequency[bucket] + 1.0)) + 1);
+            }
+        }
+
+        int found = 0;
+        for(int i = 0; i < candidateCount; i++) {
+            int row = candidates == null ? i : candidates[i];
+            // a document's rows are in the order they were added, so none after this one were there when searching began
+            if(row >= rowLimit)
+                break;
+            FloatBuffer segment = current[row / rowsPerSegment];
+            int base = (row % rowsPerSegment) * dimension;
+            float score = 0;
+            for(int j = 0; j < queryLength; j++)
+                score += weights[j] * segment.get(base + buckets[j]);
+
+            found = offer(row, score, k, rows, scores, found);
+        }
+        return found;
+    }
+
+    /**
+     * Keeps the k best rows seen so far sorted by score, with earlier rows ahead of later ones with the same score.
+     */
+    private static int offer(int row, float score, int k, int[] rows, float[] scores, int found) {
+        if(found == k && scores[k - 1] >= score)
+            return found;
+
+        int i = found < k ? found++ : k - 1;
+        while(i > 0 && scores[i - 1] < score) {
+            rows[i] = rows[i - 1];
+            scores[i] = scores[i - 1];
+            i--;
+        }
+        rows[i] = row;
+        scores[i] = score;
+        return found;
+    }
+
+    /**
+     * @return The document a row belongs to
+     */
+    public synchronized int document(int row) {
+        return rowDocuments[row];
+    }
+
+    /**
+     * @return The sentence in its document a row is
+     */
+    public synchronized int sentence(int row) {
+        return rowSentences[row];
+    }
+
+    private int bucket(String term) {
+        // spread the bits of the string hash, since only the low ones are used
+        int hash = term.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(channel != null)
+            channel.close();
+    }
+}
@@ -0,0 +1,115 @@
+package cs.utah.sherlock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs sample stories through Sherlock until it is as fast as it is going to get, so the first real stories are not
+ * slowed down by class loading and by the JIT still compiling the tagger, the CRF classifier, the parser and the
+ * scoring rules. The samples are run in rounds, and warming up stops once the time per round stops changing.
+ * @author Tobin Yehle
+ */
+public class WarmUp {
+    private final Sherlock sherlock;
+    private final List<Story> samples;
+
+    /** The fewest rounds to run, however stable they look */
+    public int minRounds = 3;
+    /** The most rounds to run, however unstable they look */
+    public int maxRounds = 30;
+    /** The longest to keep warming up, in milliseconds */
+    public long maxMillis = 120_000;
+    /** How many of the latest rounds have to agree */
+    public int window = 3;
+    /** How far, as a fraction of their mean, the latest rounds may be from each other */
+    public double tolerance = 0.1;
+
+    private final List<Double> roundMillis = new ArrayList<>();
+    private volatile boolean ready;
+    private long elapsedNanos;
+
+    /**
+     * @param sherlock The object to warm up
+     * @param samples The stories to run, which should use every kind of question
+     */
+    public WarmUp(Sherlock sherlock, List<Story> samples) {
+        this.sherlock = sherlock;
+        this.samples = new ArrayList<>(samples);
+        this.samples.removeIf(story -> story == null);
+        if(this.samples.isEmpty())
+            throw new IllegalArgumentException("There are no sample stories to warm up with");
+    }
+
+    /**
+     * Reads the sample stories listed in a manifest.
+     * @param sherlock The object to warm up
+     * @param manifest The manifest file, like tiny-manifest
+     * @return The warm-up for them
+     */
+    public static WarmUp fromManifest(Sherlock sherlock, String manifest) {
+        List<String> storyIDs = Driver.readManifestFile(manifest);
+        String directory = storyIDs.remove(0);
+        return new WarmUp(sherlock, Driver.readStories(directory, storyIDs));
+    }
+
+    /**
+     * Runs rounds of the samples until the time per round is stable, logging each round to stderr.
+     * @return True if the time per round settled down, false if warming up ran out of rounds or time first
+     */
+    public boolean run() {
+        long start = System.nanoTime();
+        boolean stable = false;
+        for(int round = 0; round < maxRounds && !stable; round++) {
+            long roundStart = System.nanoTime();
+            for(Story story : samples)
+                sherlock.processStory(story);
+            double millis = (System.nanoTime() - roundStart) / 1e6;
+            roundMillis.add(millis);
+            System.err.printf("warm-up round %d: %.1f ms, %.1f ms per story%n", round + 1, millis,
+                    millis / samples.size());
+
+            stable = roundMillis.size() >= Math.max(minRounds, window) && isStable();
+            if(System.nanoTime() - start > maxMillis * 1_000_000L)
+                break;
+        }
+        elapsedNanos = System.nanoTime() - start;
+
+        double first = roundMillis.get(0), last = roundMillis.get(roundMillis.size() - 1);
+        System.err.printf("warmed up in %.1f s over %d rounds%s: %.1f ms per story at first, %.1f ms at the end " +
+                        "(%.1fx faster)%n", elapsedNanos / 1e9, roundMillis.size(), stable ? "" : " without settling",
+                first / samples.size(), last / samples.size(), first / last);
+        ready = true;
+        return stable;
+    }
+
+    /**
+     * @return True if the latest rounds all took about as long as each other
+     */
+    private boolean isStable() {
+        List<Double> latest = roundMillis.subList(roundMillis.size() - window, roundMillis.size());
+        double mean = latest.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        return Collections.max(latest) - Collections.min(latest) <= tolerance * mean;
+    }
+
+    /**
+     * @return True once warming up is over, whether or not it settled down
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return How long each round took, in milliseconds
+     */
+    public List<Double> roundMillis() {
+        return Collections.unmodifiableList(roundMillis);
+    }
+
+    /**
+     * @return How long warming up took, in seconds
+     */
+    public double seconds() {
+        return elapsedNanos / 1e9;
+    }
+}
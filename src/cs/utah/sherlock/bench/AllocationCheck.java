@@ -0,0 +1,122 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.PreparedDocument;
+import cs.utah.sherlock.QuestionPlan;
+import cs.utah.sherlock.Scorer;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Checks that scoring a question against a prepared document does not allocate, both when every sentence is scored and
+ * when the best sentence is found by branch and bound, which is how questions are answered, in every pruning mode. The
+ * document is synthetic, so this runs without loading any CoreNLP models. Exits with a non zero status if either
+ * allocates more than the allowed number of bytes per question.
+ * @author Tobin Yehle
+ */
+public class AllocationCheck {
+    /**
+     * @param args Optionally the number of bytes per scored question to allow, defaulting to 0
+     */
+    public static void main(String[] args) {
+        double allowed = args.length > 0 ? Double.parseDouble(args[0]) : 0;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if(!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("Allocation counting is not supported by this JVM");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Random random = new Random(42);
+        PreparedDocument document = makeDocument(random, 60, 400);
+        QuestionPlan[] questions = new QuestionPlan[64];
+        for(int i = 0; i < questions.length; i++)
+            questions[i] = makeQuestion(random, i, 400);
+
+        Scorer scorer = new Scorer();
+        Scorer.Scratch scratch = new Scorer.Scratch();
+        double[] scores = new double[document.sentenceCount()];
+
+        boolean passed = check(threads, "score", allowed, i -> {
+            scorer.score(document, questions[i % questions.length], scratch, scores);
+            return scores[i % scores.length];
+        });
+        for(Scorer.Pruning pruning : Scorer.Pruning.values()) {
+            scorer.setPruning(pruning);
+            passed &= check(threads, "findBestSentence, prune " + pruning.name().toLowerCase(), allowed,
+                    i -> scorer.findBestSentence(document, questions[i % questions.length], scratch, scores));
+        }
+
+        if(!passed)
+            System.exit(1);
+    }
+
+    /**
+     * Counts the bytes one way of scoring allocates per question.
+     * @param name What is being checked, for the report
+     * @param allowed The number of bytes per question to allow
+     * @param question Handles the question with the given number, returning something to add to the checksum
+     * @return True if it allocated no more than allowed
+     */
+    private static boolean check(com.sun.management.ThreadMXBean threads, String name, double allowed,
+                                 IntToDoubleFunction question) {
+        // let the JIT settle before counting
+        run(question, 200000);
+
+        long thread = Thread.currentThread().getId();
+        int iterations = 1000000;
+        long before = threads.getThreadAllocatedBytes(thread);
+        double checksum = run(question, iterations);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        double perQuestion = (double) allocated / iterations;
+        System.out.printf("%s: %d bytes over %d questions, %.4f bytes per question (checksum %.1f)%n",
+                name, allocated, iterations, perQuestion, checksum);
+
+        if(perQuestion > allowed) {
+            System.err.printf("FAILED: %s allocates %.4f bytes per question, %.4f allowed%n", name, perQuestion, allowed);
+            return false;
+        }
+        return true;
+    }
+
+    private static double run(IntToDoubleFunction question, int iterations) {
+        double checksum = 0;
+        for(int i = 0; i < iterations; i++)
+            checksum += question.applyAsDouble(i);
+        return checksum;
+    }
+
+    private static PreparedDocument makeDocument(Random random, int sentences, int vocabulary) {
+        Map<String, Integer> termIds = new HashMap<>();
+        for(int i = 0; i < vocabulary; i++)
+            termIds.put("term" + i, i);
+
+        int[][] verbTerms = new int[sentences][];
+        int[][] otherTerms = new int[sentences][];
+        int[] entities = new int[sentences];
+        int[] cues = new int[sentences];
+        int[] sizes = new int[sentences];
+        for(int i = 0; i < sentences; i++) {
+            verbTerms[i] = randomTerms(random, 3, vocabulary);
+            otherTerms[i] = randomTerms(random, 12, vocabulary);
+            entities[i] = random.nextInt(1 << 7);
+            cues[i] = random.nextInt(1 << 8);
+            sizes[i] = 5 + random.nextInt(30);
+        }
+        return new PreparedDocument(null, termIds, verbTerms, otherTerms, entities, cues, sizes);
+    }
+
+    private static int[] randomTerms(Random random, int count, int vocabulary) {
+        return random.ints(0, vocabulary).distinct().limit(count).sorted().toArray();
+    }
+
+    private static QuestionPlan makeQuestion(Random random, int index, int vocabulary) {
+        QuestionPlan.Type[] types = QuestionPlan.Type.values();
+        // include some words the document has never seen
+        String[] terms = random.ints(0, vocabulary + 50).distinct().limit(6).mapToObj(i -> "term" + i).toArray(String[]::new);
+        return new QuestionPlan(types[index % types.length], terms, random.nextInt(1 << 6), random.nextInt(1 << 7), null);
+    }
+}
@@ -0,0 +1,110 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.Story;
+
+import java.util.*;
+
+/**
+ * Scores answers the same way score-answers.pl does, so benchmarks can report accuracy without writing answer files.
+ * @author Tobin Yehle
+ */
+public class AnswerScorer {
+    private static final String PUNCTUATION = ",:;.!?'\"({)}";
+
+    /**
+     * The recall and precision of a single response.
+     */
+    public static class Score {
+        public final double recall, precision, fMeasure;
+        public final boolean answered;
+
+        private Score(int correct, int numKeyWords, int numResponseWords) {
+            recall = numKeyWords > 0 ? (double) correct / numKeyWords : 0;
+            precision = numResponseWords > 0 ? (double) correct / numResponseWords : 0;
+            fMeasure = fMeasure(recall, precision);
+            answered = numResponseWords > 0;
+        }
+    }
+
+    /**
+     * Scores a response against the best matching option in an answer key.
+     * @param key The answer key, with options separated by |
+     * @param response The response to score
+     * @return The score against the option with the highest F-measure
+     */
+    public static Score score(String key, String response) {
+        Score best = null;
+        for(String option : key.trim().split("\\s*\\|\\s*")) {
+            Score score = scoreOption(option, response);
+            if(best == null || score.fMeasure > best.fMeasure)
+                best = score;
+        }
+        return best;
+    }
+
+    /**
+     * Finds the overall F-measure of a set of responses, as reported by score-answers.pl. That is the F-measure of
+     * the recall averaged over all questions and the precision averaged over the questions that were answered.
+     * @param key The questions with their answers
+     * @param responses The responses, keyed by question ID. Missing responses are treated as empty.
+     * @return The overall F-measure
+     */
+    public static double averageFMeasure(List<Story.Question> key, Map<String, String> responses) {
+        if(key.isEmpty())
+            return 0;
+
+        double recallSum = 0, precisionSum = 0;
+        int answered = 0;
+        for(Story.Question question : key) {
+            Score score = score(question.answer, responses.getOrDefault(question.id, ""));
+            recallSum += score.recall;
+            precisionSum += score.precision;
+            if(score.answered)
+                answered++;
+        }
+
+        return fMeasure(recallSum / key.size(), answered > 0 ? precisionSum / answered : 0);
+    }
+
+    private static double fMeasure(double recall, double precision) {
+        return recall + precision > 0 ? 2 * recall * precision / (recall + precision) : 0;
+    }
+
+    private static Score scoreOption(String key, String response) {
+        List<String> keyWords = words(key);
+        List<String> responseWords = words(response);
+
+        int numKeyWords = keyWords.size();
+        int correct = 0;
+        for(String word : responseWords) {
+            // each key word can only be matched once
+            for(Iterator<String> it = keyWords.iterator(); it.hasNext(); ) {
+                if(it.next().equalsIgnoreCase(word)) {
+                    correct++;
+                    it.remove();
+                    break;
+                }
+            }
+        }
+
+        return new Score(correct, numKeyWords, responseWords.size());
+    }
+
+    /**
+     * Splits a string on white space and strips a leading and trailing punctuation mark from each word.
+     * @param text The text to split
+     * @return The non empty words
+     */
+    private static List<String> words(String text) {
+        List<String> out = new ArrayList<>();
+        for(String word : text.trim().split("\\s+")) {
+            if(!word.isEmpty() && PUNCTUATION.indexOf(word.charAt(0)) >= 0)
+                word = word.substring(1);
+            if(!word.isEmpty() && PUNCTUATION.indexOf(word.charAt(word.length() - 1)) >= 0)
+                word = word.substring(0, word.length() - 1);
+            if(!word.isEmpty())
+                out.add(word);
+        }
+        return out;
+    }
+}
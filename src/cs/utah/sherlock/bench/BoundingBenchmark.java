@@ -0,0 +1,180 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.PreparedDocument;
+import cs.utah.sherlock.QuestionPlan;
+import cs.utah.sherlock.RuleSet;
+import cs.utah.sherlock.ScoreMatrix;
+import cs.utah.sherlock.Scorer;
+
+import java.util.*;
+
+/**
+ * Checks that branch and bound in {@link Scorer#findBestSentence} picks the same sentence as scoring every sentence,
+ * and times the two. The documents are synthetic, like in {@link AllocationCheck}, so this runs without loading any
+ * CoreNLP models. Every question type and pruning mode is checked, over whole documents and over candidate sets, with
+ * the default rules and with rules that take points off. Every score given back has to be either the exact score or
+ * negative infinity. Exits with a non zero status if any answer or score differs.
+ * @author Tobin Yehle
+ */
+public class BoundingBenchmark {
+    /**
+     * @param args Optionally --documents=N, --sentences=N for the most sentences in a document and --rounds=N for how
+     *             many times to time each way
+     */
+    public static void main(String[] args) {
+        int documentCount = 200, maxSentences = 200, rounds = 20;
+        for(String arg : args) {
+            if(arg.startsWith("--documents="))
+                documentCount = Integer.parseInt(arg.substring("--documents=".length()));
+            else if(arg.startsWith("--sentences="))
+                maxSentences = Integer.parseInt(arg.substring("--sentences=".length()));
+            else if(arg.startsWith("--rounds="))
+                rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+        }
+
+        Random random = new Random(42);
+        int vocabulary = 2000;
+        List<PreparedDocument> documents = new ArrayList<>();
+        for(int i = 0; i < documentCount; i++)
+            documents.add(makeDocument(random, 5 + random.nextInt(maxSentences), vocabulary));
+        QuestionPlan[] questions = new QuestionPlan[70];
+        for(int i = 0; i < questions.length; i++)
+            questions[i] = makeQuestion(random, i, vocabulary);
+
+        Scorer scorer = new Scorer();
+        Scorer.Scratch scratch = new Scorer.Scratch();
+        double[] scores = new double[maxSentences + 5];
+
+        // penalties make a sentence's bagging points no bound on its score in either direction
+        RuleSet penalties = RuleSet.parse(Arrays.asList(
+                "who    *             cue:NAME                 -4         who_name_word_penalty",
+                "who    *             entity:PERSON            confident  who_person",
+                "when   *             entity:PERSON            -3         when_person_penalty",
+                "when   *             entity:DATE|TIME         good_clue  when_time",
+                "why    *             best:AFTER               -2         why_after_best_penalty",
+                "why    *             cue:WANT_SO_BECAUSE      good_clue  why_want_so_because",
+                "where  *             entity:LOCATION          confident  where_location",
+                "where  *             !entity:LOCATION         -1         where_no_location"));
+
+        int mismatches = 0, badScores = 0, checked = 0;
+        for(RuleSet rules : Arrays.asList(RuleSet.DEFAULT, penalties)) {
+            scorer.setRules(rules);
+            for(Scorer.Pruning pruning : Scorer.Pruning.values()) {
+                scorer.setPruning(pruning);
+                for(PreparedDocument document : documents) {
+                    double[] exact = new double[document.sentenceCount()];
+                    double[] bounded = new double[document.sentenceCount()];
+                    int[] candidates = random.ints(0, document.sentenceCount()).distinct()
+                                             .limit(1 + random.nextInt(document.sentenceCount())).sorted().toArray();
+                    for(QuestionPlan question : questions) {
+                        scorer.score(document, question, scratch, exact);
+                        int expected = ScoreMatrix.findBest(exact, document.sizes());
+                        if(scorer.findBestSentence(document, question, scratch, bounded) != expected)
+                            mismatches++;
+                        badScores += badScores(exact, bounded);
+
+                        scorer.score(document, question, scratch, candidates, candidates.length, exact);
+                        expected = ScoreMatrix.findBest(exact, document.sizes());
+                        if(scorer.findBestSentence(document, question, scratch, candidates, candidates.length, bounded) != expected)
+                            mismatches++;
+                        badScores += badScores(exact, bounded);
+                        checked += 2;
+                    }
+                }
+            }
+        }
+        scorer.setRules(RuleSet.DEFAULT);
+        scorer.setPruning(Scorer.Pruning.OFF);
+        System.out.printf("%d of %d answers differ from exhaustive scoring, %d scores are neither exact nor negative " +
+                          "infinity%n", mismatches, checked, badScores);
+
+        long bounded = scorer.boundedSentences(), skipped = scorer.skippedSentences();
+        // the sum of the answers each way, which also keeps the JIT from throwing the work away
+        long[] checksums = new long[2];
+        // each way is timed twice and the second time kept, so neither is timed before the JIT has seen the other
+        double boundedMicros = time(scorer, true, documents, questions, scratch, scores, rounds, checksums);
+        double exhaustiveMicros = time(scorer, false, documents, questions, scratch, scores, rounds, checksums);
+        boundedMicros = time(scorer, true, documents, questions, scratch, scores, rounds, checksums);
+        exhaustiveMicros = time(scorer, false, documents, questions, scratch, scores, rounds, checksums);
+        bounded = scorer.boundedSentences() - bounded;
+        skipped = scorer.skippedSentences() - skipped;
+        System.out.printf("exhaustive %.2f us/question, bounded %.2f us/question (%.2fx), %.1f%% of sentences skipped " +
+                          "(checksums %d and %d)%n", exhaustiveMicros, boundedMicros, exhaustiveMicros / boundedMicros,
+                          100.0 * skipped / Math.max(1, bounded), checksums[0], checksums[1]);
+
+        if(mismatches > 0 || badScores > 0)
+            System.exit(1);
+    }
+
+    /**
+     * @return The number of sentences given a score that is neither the exact one nor negative infinity
+     */
+    private static int badScores(double[] exact, double[] bounded) {
+        int bad = 0;
+        for(int i = 0; i < exact.length; i++) {
+            if(bounded[i] != exact[i] && bounded[i] != Double.NEGATIVE_INFINITY)
+                bad++;
+        }
+        return bad;
+    }
+
+    /**
+     * Times finding the best sentence for every question in every document one way.
+     * @param checksums Where to put the sum of the answers, the first slot for exhaustive scoring and the second for
+     *                  bounded
+     * @return The average time per question in microseconds
+     */
+    private static double time(Scorer scorer, boolean bounding, List<PreparedDocument> documents,
+                               QuestionPlan[] questions, Scorer.Scratch scratch, double[] scores, int rounds,
+                               long[] checksums) {
+        scorer.setBounding(bounding);
+        // the first round is only to let the JIT settle
+        long start = 0;
+        long sink = 0;
+        for(int round = 0; round <= rounds; round++) {
+            if(round == 1)
+                start = System.nanoTime();
+            for(PreparedDocument document : documents) {
+                for(QuestionPlan question : questions)
+                    sink += scorer.findBestSentence(document, question, scratch, scores);
+            }
+        }
+        checksums[bounding ? 1 : 0] = sink;
+        return (System.nanoTime() - start) / 1e3 / Math.max(1, rounds * documents.size() * questions.length);
+    }
+
+    private static PreparedDocument makeDocument(Random random, int sentences, int vocabulary) {
+        Map<String, Integer> termIds = new HashMap<>();
+        for(int i = 0; i < vocabulary; i++)
+            termIds.put("term" + i, i);
+
+        int[][] verbTerms = new int[sentences][];
+        int[][] otherTerms = new int[sentences][];
+        int[] entities = new int[sentences];
+        int[] cues = new int[sentences];
+        int[] sizes = new int[sentences];
+        for(int i = 0; i < sentences; i++) {
+            // sentence lengths and word frequencies are both skewed, like in real stories
+            verbTerms[i] = randomTerms(random, 1 + random.nextInt(4), vocabulary);
+            otherTerms[i] = randomTerms(random, 2 + random.nextInt(random.nextInt(20) + 1), vocabulary);
+            entities[i] = random.nextInt(1 << 7) & random.nextInt(1 << 7);
+            cues[i] = random.nextInt(1 << 8) & random.nextInt(1 << 8) & random.nextInt(1 << 8);
+            sizes[i] = verbTerms[i].length + otherTerms[i].length + random.nextInt(10);
+        }
+        return new PreparedDocument(null, termIds, verbTerms, otherTerms, entities, cues, sizes);
+    }
+
+    private static int[] randomTerms(Random random, int count, int vocabulary) {
+        return random.ints(0, vocabulary).map(i -> (int) ((long) i * i / vocabulary)).distinct().limit(count)
+                     .sorted().toArray();
+    }
+
+    private static QuestionPlan makeQuestion(Random random, int index, int vocabulary) {
+        QuestionPlan.Type[] types = QuestionPlan.Type.values();
+        String[] terms = random.ints(0, vocabulary).map(i -> (int) ((long) i * i / vocabulary)).distinct()
+                               .limit(2 + random.nextInt(5)).mapToObj(i -> "term" + i).toArray(String[]::new);
+        Set<String> answerFilter = index % 3 == 0 ? null : new HashSet<>(Arrays.asList("PERSON", "DATE", "MONEY"));
+        return new QuestionPlan(types[index % types.length], terms, random.nextInt(1 << 6) & random.nextInt(1 << 6),
+                                random.nextInt(1 << 7) & random.nextInt(1 << 7), answerFilter);
+    }
+}
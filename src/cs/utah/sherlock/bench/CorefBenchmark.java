@@ -0,0 +1,51 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.Driver;
+import cs.utah.sherlock.Sherlock;
+import cs.utah.sherlock.Story;
+import cs.utah.sherlock.Util;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compares the speed and accuracy of the ways Sherlock can find co-referent mentions.
+ * @author Tobin Yehle
+ */
+public class CorefBenchmark {
+    /**
+     * @param args The manifest and answer key to use, defaulting to the developset, followed by the coref modes to
+     *             compare, defaulting to dcoref and pronouns
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        String manifest = args.length > 0 ? args[0] : "developset-manifest";
+        String answerKey = args.length > 1 ? args[1] : "developset-answers";
+
+        List<Sherlock.Coref> modes = new ArrayList<>();
+        for(int i = 2; i < args.length; i++)
+            modes.add(Sherlock.Coref.valueOf(args[i].toUpperCase()));
+        if(modes.isEmpty())
+            modes = Util.listOf(Sherlock.Coref.DCOREF, Sherlock.Coref.PRONOUNS);
+
+        List<String> storyIDs = Driver.readManifestFile(manifest);
+        String directory = storyIDs.remove(0);
+        List<Story> stories = Driver.readStories(directory, storyIDs);
+        List<Story.Question> key = Driver.readQuestions(answerKey, true);
+
+        System.out.printf("%-10s %10s %12s %10s%n", "coref", "total s", "ms/story", "F-measure");
+        for(Sherlock.Coref mode : modes) {
+            Sherlock sherlock = new Sherlock("stop-words.txt", mode);
+
+            Map<String, String> responses = new HashMap<>();
+            long start = System.nanoTime();
+            for(Story story : stories) {
+                for(Map.Entry<Story.Question, String> answer : sherlock.processStory(story).entrySet())
+                    responses.put(answer.getKey().id, answer.getValue());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-10s %10.1f %12.1f %10.4f%n", mode.name().toLowerCase(), seconds,
+                    1000 * seconds / stories.size(), AnswerScorer.averageFMeasure(key, responses));
+        }
+    }
+}
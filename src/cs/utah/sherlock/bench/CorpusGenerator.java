@@ -0,0 +1,322 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.Driver;
+import cs.utah.sherlock.Story;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Makes large corpora out of the sentences and questions in a small one, so Sherlock can be measured on longer stories
+ * and more of them than the bundled data sets have. Each generated story is made of runs of sentences from randomly
+ * picked source stories, and its questions are drawn from the questions about those same source stories, so most
+ * answers are still somewhere in the text.
+ * @author Tobin Yehle
+ */
+public class CorpusGenerator {
+    // splits text after the end of a sentence, keeping quotes with the sentence they close, but not after titles
+    private static final Pattern SENTENCE_END = Pattern.compile(
+            "(?<=[.!?][\"']?)(?<!\\b(?:Mr|Mrs|Ms|Dr|St|Jr|Sr|Mt|Lt|Gen|Sgt|Capt|Prof|Rev|Gov|Sen)\\.)\\s+(?=[\"'(]?[A-Z0-9])");
+    private static final List<String> QUESTION_WORDS = Arrays.asList("who", "whom", "whose", "which", "where", "when",
+                                                                     "what", "why", "how");
+
+    private static class Source {
+        final List<String> sentences;
+        final List<Story.Question> questions;
+
+        Source(List<String> sentences, List<Story.Question> questions) {
+            this.sentences = sentences;
+            this.questions = questions;
+        }
+    }
+
+    private final List<Source> sources = new ArrayList<>();
+
+    public int stories = 100;
+    public int sentencesPerStory = 30;
+    public int minSentenceWords = 1, maxSentenceWords = Integer.MAX_VALUE;
+    public int questionsPerStory = 10;
+    /** How often each type of question should come up, keyed by question word. Empty means as often as in the source. */
+    public Map<String, Double> questionMix = new HashMap<>();
+    public long seed = 42;
+
+    /**
+     * @param sourceStories The stories to take sentences and questions from
+     */
+    public CorpusGenerator(List<Story> sourceStories) {
+        for(Story story : sourceStories) {
+            if(story != null)
+                sources.add(new Source(splitSentences(story.text), story.questions));
+        }
+        if(sources.isEmpty())
+            throw new IllegalArgumentException("There are no source stories to generate from");
+    }
+
+    /**
+     * Splits text into sentences on end of sentence punctuation. This is rougher than CoreNLP, but the generated text
+     * is annotated properly when it is read back in.
+     * @param text The text to split
+     * @return The sentences
+     */
+    public static List<String> splitSentences(String text) {
+        List<String> sentences = new ArrayList<>();
+        for(String sentence : SENTENCE_END.split(text.trim().replaceAll("\\s+", " "))) {
+            if(!sentence.isEmpty())
+                sentences.add(sentence);
+        }
+        return sentences;
+    }
+
+    /**
+     * Finds the type of a question the same way Sherlock does, from the first question word in it.
+     * @param question The text of the question
+     * @return The question word, or "other" if there is none
+     */
+    public static String questionType(String question) {
+        for(String word : question.toLowerCase().split("[^a-z]+")) {
+            if(QUESTION_WORDS.contains(word))
+                return word;
+        }
+        return "other";
+    }
+
+    /**
+     * Makes a corpus with the current settings. The same settings and seed always make the same corpus.
+     * @return The generated stories, with answers to their questions where the sources had them
+     */
+    public List<Story> generate() {
+        Random random = new Random(seed);
+        List<Story> out = new ArrayList<>(stories);
+        for(int storyNum = 0; storyNum < stories; storyNum++) {
+            String id = String.format("gen-%06d", storyNum);
+
+            // take runs of sentences from random stories until the story is long enough
+            List<String> sentences = new ArrayList<>();
+            Set<Source> used = new LinkedHashSet<>();
+            for(int attempts = 0; sentences.size() < sentencesPerStory && attempts < 100 * sentencesPerStory; attempts++) {
+                Source source = sources.get(random.nextInt(sources.size()));
+                int start = random.nextInt(source.sentences.size());
+                int length = 1 + random.nextInt(Math.min(8, source.sentences.size() - start));
+                for(String sentence : source.sentences.subList(start, start + length)) {
+                    int words = sentence.split(" ").length;
+                    if(words >= minSentenceWords && words <= maxSentenceWords && sentences.size() < sentencesPerStory) {
+                        sentences.add(sentence);
+                        used.add(source);
+                    }
+                }
+            }
+
+            List<Story.Question> candidates = new ArrayList<>();
+            for(Source source : used)
+                candidates.addAll(source.questions);
+            if(candidates.isEmpty()) {
+                // the sentences are too short or long for any story to have questions left, so ask about anything
+                for(Source source : sources)
+                    candidates.addAll(source.questions);
+            }
+
+            List<Story.Question> questions = new ArrayList<>(questionsPerStory);
+            for(int questionNum = 0; questionNum < questionsPerStory; questionNum++) {
+                Story.Question question = pickQuestion(candidates, random);
+                questions.add(new Story.Question(id + "-" + (questionNum + 1), question.question, question.difficulty,
+                                                 question.answer));
+            }
+
+            out.add(new Story("Generated story " + storyNum, "January 1, 2000", id, String.join(" ", sentences), questions));
+        }
+        return out;
+    }
+
+    /**
+     * Picks a question, first choosing its type by the question mix.
+     */
+    private Story.Question pickQuestion(List<Story.Question> candidates, Random random) {
+        if(questionMix.isEmpty())
+            return candidates.get(random.nextInt(candidates.size()));
+
+        Map<String, List<Story.Question>> byType = new HashMap<>();
+        for(Story.Question question : candidates)
+            byType.computeIfAbsent(questionType(question.question), type -> new ArrayList<>()).add(question);
+
+        // only the types these sources have questions of can be picked
+        double total = 0;
+        for(Map.Entry<String, Double> type : questionMix.entrySet()) {
+            if(byType.containsKey(type.getKey()))
+                total += type.getValue();
+        }
+        if(total <= 0)
+            return candidates.get(random.nextInt(candidates.size()));
+
+        double pick = random.nextDouble() * total;
+        for(Map.Entry<String, Double> type : new TreeMap<>(questionMix).entrySet()) {
+            List<Story.Question> ofType = byType.get(type.getKey());
+            if(ofType == null)
+                continue;
+            pick -= type.getValue();
+            if(pick < 0)
+                return ofType.get(random.nextInt(ofType.size()));
+        }
+        return candidates.get(random.nextInt(candidates.size()));
+    }
+
+    /**
+     * Writes a corpus in the same layout as the bundled data sets: a directory of .story, .questions and .answers
+     * files, a manifest and an answer key.
+     * @param corpus The stories to write
+     * @param directory The directory to put the story files in
+     * @param name The prefix of the manifest and answer key, which are written next to the directory
+     */
+    public static void write(List<Story> corpus, File directory, String name) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not make " + directory);
+        File parent = directory.getAbsoluteFile().getParentFile();
+
+        try(PrintWriter manifest = writer(new File(parent, name + "-manifest"));
+            PrintWriter key = writer(new File(parent, name + "-answers"))) {
+            manifest.println(directory.getPath());
+            for(Story story : corpus) {
+                manifest.println(story.id);
+
+                try(PrintWriter out = writer(new File(directory, story.id + ".story"))) {
+                    out.println("HEADLINE: " + story.headline);
+                    out.println("DATE: " + story.date);
+                    out.println("STORYID: " + story.id);
+                    out.println();
+                    out.println("TEXT:");
+                    out.println();
+                    for(String line : wrap(story.text, 70))
+                        out.println(line);
+                }
+
+                try(PrintWriter questions = writer(new File(directory, story.id + ".questions"));
+                    PrintWriter answers = writer(new File(directory, story.id + ".answers"))) {
+                    for(Story.Question question : story.questions) {
+                        String difficulty = question.difficulty == 0 ? "Easy" : "Moderate";
+                        questions.print("QuestionID: " + question.id + "\nQuestion: " + question.question +
+                                "\nDifficulty: " + difficulty + "\n\n");
+                        String answer = "QuestionID: " + question.id + "\nQuestion: " + question.question +
+                                "\nAnswer: " + (question.answer == null ? "" : question.answer) +
+                                "\nDifficulty: " + difficulty + "\n\n";
+                        answers.print(answer);
+                        key.print(answer);
+                    }
+                }
+            }
+        }
+    }
+
+    private static PrintWriter writer(File file) throws IOException {
+        return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    private static List<String> wrap(String text, int width) {
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        for(String word : text.split(" ")) {
+            if(line.length() > 0 && line.length() + 1 + word.length() > width) {
+                lines.add(line.toString());
+                line.setLength(0);
+            }
+            if(line.length() > 0)
+                line.append(' ');
+            line.append(word);
+        }
+        if(line.length() > 0)
+            lines.add(line.toString());
+        return lines;
+    }
+
+    /**
+     * Parses a question mix like who=2,what=3,when=1.
+     * @param mix The mix to parse
+     * @return The weight of each question word
+     */
+    public static Map<String, Double> parseMix(String mix) {
+        Map<String, Double> weights = new HashMap<>();
+        for(String part : mix.split(",")) {
+            String[] typeWeight = part.split("=");
+            weights.put(typeWeight[0].trim().toLowerCase(), typeWeight.length > 1 ? Double.parseDouble(typeWeight[1]) : 1);
+        }
+        return weights;
+    }
+
+    /**
+     * Applies a setting like --stories=100 to a generator.
+     * @param generator The generator to configure
+     * @param arg The command line argument
+     * @return True if the argument was a generator setting
+     */
+    static boolean configure(CorpusGenerator generator, String arg) {
+        String[] nameValue = arg.split("=", 2);
+        if(nameValue.length != 2)
+            return false;
+        String value = nameValue[1];
+        switch (nameValue[0]) {
+            case "--stories":
+                generator.stories = Integer.parseInt(value);
+                return true;
+            case "--sentences":
+                generator.sentencesPerStory = Integer.parseInt(value);
+                return true;
+            case "--sentence-words":
+                String[] range = value.split("-");
+                generator.minSentenceWords = Integer.parseInt(range[0]);
+                generator.maxSentenceWords = range.length > 1 ? Integer.parseInt(range[1]) : Integer.MAX_VALUE;
+                return true;
+            case "--questions":
+                generator.questionsPerStory = Integer.parseInt(value);
+                return true;
+            case "--mix":
+                generator.questionMix = parseMix(value);
+                return true;
+            case "--seed":
+                generator.seed = Long.parseLong(value);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Reads the stories in a manifest to generate from.
+     * @param manifest The manifest file
+     * @return The stories it lists
+     */
+    static List<Story> readSource(String manifest) {
+        List<String> storyIDs = Driver.readManifestFile(manifest);
+        String directory = storyIDs.remove(0);
+        return Driver.readStories(directory, storyIDs);
+    }
+
+    /**
+     * @param args The source manifest, the output directory and name, then any of --stories=N, --sentences=N,
+     *             --sentence-words=MIN-MAX, --questions=N, --mix=who=2,what=1,... and --seed=N
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> positional = new ArrayList<>();
+        List<String> settings = new ArrayList<>();
+        for(String arg : args) {
+            if(arg.startsWith("--"))
+                settings.add(arg);
+            else
+                positional.add(arg);
+        }
+
+        if(positional.size() != 3) {
+            System.err.println("Usage: CorpusGenerator <source-manifest> <output-directory> <name> [settings]");
+            System.exit(1);
+        }
+
+        CorpusGenerator generator = new CorpusGenerator(readSource(positional.get(0)));
+        for(String setting : settings) {
+            if(!configure(generator, setting))
+                System.err.println("WARNING: Unknown option " + setting + " was ignored.");
+        }
+
+        List<Story> corpus = generator.generate();
+        write(corpus, new File(positional.get(1)), positional.get(2));
+        System.err.println("Wrote " + corpus.size() + " stories to " + positional.get(1));
+    }
+}
@@ -0,0 +1,132 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.MemoryBudget;
+import cs.utah.sherlock.Sherlock;
+import cs.utah.sherlock.Story;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Fits the coefficients of {@link MemoryBudget}'s estimate to the heap actually used annotating each story in a
+ * corpus. Stories are annotated one at a time on a clean heap, and the peak heap use above the starting point is fit
+ * by least squares to the story's token count and the square of its longest sentence.
+ * @author Tobin Yehle
+ */
+public class MemoryCalibration {
+    /**
+     * @param args The manifest to use, defaulting to all-data, then --coref=dcoref|pronouns|none and --stories=N to
+     *             only measure the first N stories
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+        String manifest = "all-data-manifest";
+        Sherlock.Coref coref = Sherlock.Coref.DCOREF;
+        int limit = Integer.MAX_VALUE;
+        for(String arg : args) {
+            if(arg.startsWith("--coref="))
+                coref = Sherlock.Coref.valueOf(arg.substring("--coref=".length()).toUpperCase());
+            else if(arg.startsWith("--stories="))
+                limit = Integer.parseInt(arg.substring("--stories=".length()));
+            else
+                manifest = arg;
+        }
+        boolean parsed = coref == Sherlock.Coref.DCOREF;
+
+        List<Story> stories = CorpusGenerator.readSource(manifest);
+        stories.removeIf(Objects::isNull);
+        stories = stories.subList(0, Math.min(limit, stories.size()));
+        Sherlock sherlock = new Sherlock("stop-words.txt", coref);
+        // load the models before anything is measured, so they are part of the baseline
+        sherlock.annotate(stories.get(0).text);
+
+        // normal equations for bytes = base + perToken * tokens + perCell * longest^2
+        int parameters = parsed ? 3 : 2;
+        double[][] xtx = new double[parameters][parameters];
+        double[] xty = new double[parameters];
+        double[][] features = new double[stories.size()][];
+        double[] measured = new double[stories.size()];
+
+        System.out.println("story,tokens,longest_sentence,peak_mb");
+        for(int storyNum = 0; storyNum < stories.size(); storyNum++) {
+            Story story = stories.get(storyNum);
+            int tokens = MemoryBudget.countTokens(story.text);
+            int longest = MemoryBudget.longestSentence(story.text);
+
+            System.gc();
+            long baseline = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            ScalingBenchmark.HeapSampler heap = new ScalingBenchmark.HeapSampler();
+            heap.start();
+            sherlock.annotate(story.text);
+            long peak = Math.max(0, heap.finish() - baseline);
+
+            double[] x = parsed ? new double[]{1, tokens, (double) longest * longest} : new double[]{1, tokens};
+            features[storyNum] = x;
+            measured[storyNum] = peak;
+            for(int i = 0; i < parameters; i++) {
+                xty[i] += x[i] * peak;
+                for(int j = 0; j < parameters; j++)
+                    xtx[i][j] += x[i] * x[j];
+            }
+            System.out.printf("%s,%d,%d,%.2f%n", story.id, tokens, longest, peak / 1e6);
+        }
+
+        double[] fit = solve(xtx, xty);
+        int under = 0;
+        double worst = 0;
+        for(int storyNum = 0; storyNum < features.length; storyNum++) {
+            double estimate = 0;
+            for(int i = 0; i < parameters; i++)
+                estimate += fit[i] * features[storyNum][i];
+            if(estimate < measured[storyNum]) {
+                under++;
+                worst = Math.max(worst, measured[storyNum] / Math.max(1, estimate));
+            }
+        }
+
+        double perCell = parsed ? fit[2] : 0;
+        System.err.printf("fit over %d stories: %.0f bytes + %.0f bytes per token + %.0f bytes per parse cell%n",
+                stories.size(), fit[0], fit[1], perCell);
+        System.err.printf("%d stories used more than estimated, by up to %.2fx%n", under, worst);
+        System.err.printf("use --memory-model=%.0f,%.0f,%.0f, scaled up for headroom%n", fit[0], fit[1], perCell);
+    }
+
+    /**
+     * Solves a small system of linear equations by Gaussian elimination with partial pivoting.
+     */
+    private static double[] solve(double[][] a, double[] b) {
+        int n = b.length;
+        for(int column = 0; column < n; column++) {
+            int pivot = column;
+            for(int row = column + 1; row < n; row++) {
+                if(Math.abs(a[row][column]) > Math.abs(a[pivot][column]))
+                    pivot = row;
+            }
+            double[] swapRow = a[column];
+            a[column] = a[pivot];
+            a[pivot] = swapRow;
+            double swap = b[column];
+            b[column] = b[pivot];
+            b[pivot] = swap;
+            if(a[column][column] == 0)
+                continue;
+
+            for(int row = column + 1; row < n; row++) {
+                double factor = a[row][column] / a[column][column];
+                b[row] -= factor * b[column];
+                for(int k = column; k < n; k++)
+                    a[row][k] -= factor * a[column][k];
+            }
+        }
+
+        double[] x = new double[n];
+        for(int row = n - 1; row >= 0; row--) {
+            double sum = b[row];
+            for(int k = row + 1; k < n; k++)
+                sum -= a[row][k] * x[k];
+            x[row] = a[row][row] == 0 ? 0 : sum / a[row][row];
+        }
+        return x;
+    }
+}
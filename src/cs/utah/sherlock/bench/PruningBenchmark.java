@@ -0,0 +1,74 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.*;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compares the answers and scoring time with each kind of answer type pruning. The stories are annotated once, then
+ * every question is answered with pruning off, with pruned sentences only bagged and with them skipped.
+ * @author Tobin Yehle
+ */
+public class PruningBenchmark {
+    /**
+     * @param args The manifest to use, defaulting to the developset, then --coref=dcoref|pronouns|none and --rounds=N
+     *             for how many times to time each mode
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        String manifest = "developset-manifest";
+        Sherlock.Coref coref = Sherlock.Coref.PRONOUNS;
+        int rounds = 5;
+        for(String arg : args) {
+            if(arg.startsWith("--coref="))
+                coref = Sherlock.Coref.valueOf(arg.substring("--coref=".length()).toUpperCase());
+            else if(arg.startsWith("--rounds="))
+                rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+            else
+                manifest = arg;
+        }
+
+        List<Story> stories = CorpusGenerator.readSource(manifest);
+        stories.removeIf(Objects::isNull);
+        Sherlock sherlock = new Sherlock("stop-words.txt", coref);
+        List<PreparedDocument> documents = new ArrayList<>();
+        List<Story.Question> key = new ArrayList<>();
+        for(Story story : stories) {
+            documents.add(sherlock.annotate(story.text));
+            key.addAll(story.questions);
+        }
+
+        double baseline = 0;
+        System.out.printf("%-13s %10s %12s %12s %14s%n", "pruning", "pruned %", "f-measure", "delta", "us/question");
+        for(Scorer.Pruning pruning : Scorer.Pruning.values()) {
+            sherlock.setPruning(pruning);
+            Scorer scorer = sherlock.getScorer();
+            long prunable = scorer.prunableSentences(), pruned = scorer.prunedSentences();
+
+            Map<String, String> responses = new HashMap<>();
+            answerAll(sherlock, stories, documents, responses);
+            prunable = scorer.prunableSentences() - prunable;
+            pruned = scorer.prunedSentences() - pruned;
+
+            // answering is deterministic, so the later rounds are only for timing
+            long start = System.nanoTime();
+            for(int round = 0; round < rounds; round++)
+                answerAll(sherlock, stories, documents, new HashMap<>());
+            double microsPerQuestion = (System.nanoTime() - start) / 1e3 / Math.max(1, rounds * key.size());
+
+            double fMeasure = AnswerScorer.averageFMeasure(key, responses);
+            if(pruning == Scorer.Pruning.OFF)
+                baseline = fMeasure;
+            System.out.printf("%-13s %9.1f%% %12.4f %+12.4f %14.1f%n", pruning.name().toLowerCase(),
+                    100.0 * pruned / Math.max(1, prunable), fMeasure, fMeasure - baseline, microsPerQuestion);
+        }
+    }
+
+    private static void answerAll(Sherlock sherlock, List<Story> stories, List<PreparedDocument> documents,
+                                  Map<String, String> responses) {
+        for(int storyNum = 0; storyNum < stories.size(); storyNum++) {
+            for(Story.Question question : stories.get(storyNum).questions)
+                responses.put(question.id, sherlock.answer(documents.get(storyNum), question));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.*;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Measures how often the sentence the full scorer picks is among the top k sentences a {@link VectorIndex} finds for
+ * the same question, and how often running the rules on just those k sentences gives the same answer.
+ * @author Tobin Yehle
+ */
+public class RetrievalBenchmark {
+    /**
+     * @param args The manifest to use, defaulting to all-data, then --k=1,3,5,10,20 for the values of k to check,
+     *             --dimension=N for the vector length and --coref=dcoref|pronouns|none
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        String manifest = "all-data-manifest";
+        int[] ks = {1, 3, 5, 10, 20};
+        int dimension = 1024;
+        Sherlock.Coref coref = Sherlock.Coref.PRONOUNS;
+        for(String arg : args) {
+            if(arg.startsWith("--k="))
+                ks = Arrays.stream(arg.substring("--k=".length()).split(",")).mapToInt(Integer::parseInt).sorted().toArray();
+            else if(arg.startsWith("--dimension="))
+                dimension = Integer.parseInt(arg.substring("--dimension=".length()));
+            else if(arg.startsWith("--coref="))
+                coref = Sherlock.Coref.valueOf(arg.substring("--coref=".length()).toUpperCase());
+            else
+                manifest = arg;
+        }
+        int maxK = ks[ks.length - 1];
+
+        List<String> storyIDs = Driver.readManifestFile(manifest);
+        String directory = storyIDs.remove(0);
+        List<Story> stories = Driver.readStories(directory, storyIDs);
+
+        Sherlock sherlock = new Sherlock("stop-words.txt", coref);
+        VectorIndex index = new VectorIndex(dimension);
+
+        List<PreparedDocument> documents = new ArrayList<>();
+        int[] firstRows = new int[stories.size()];
+        for(int storyNum = 0; storyNum < stories.size(); storyNum++) {
+            PreparedDocument document = sherlock.annotate(stories.get(storyNum).text);
+            firstRows[storyNum] = index.size();
+            index.add(document);
+            documents.add(document);
+        }
+
+        int questions = 0;
+        int[] inDocument = new int[ks.length], inCorpus = new int[ks.length], sameAnswer = new int[ks.length];
+        long fullNanos = 0, searchNanos = 0;
+        int[] rows = new int[maxK];
+        float[] similarity = new float[maxK];
+
+        for(int storyNum = 0; storyNum < stories.size(); storyNum++) {
+            PreparedDocument document = documents.get(storyNum);
+            for(Story.Question question : stories.get(storyNum).questions) {
+                QuestionPlan plan = sherlock.plan(question);
+
+                long start = System.nanoTime();
+                int best = sherlock.scoreStory(document, Collections.singletonList(plan)).best(0);
+                fullNanos += System.nanoTime() - start;
+                // nothing scored, so there is nothing to find
+                if(best < 0)
+                    continue;
+                questions++;
+
+                start = System.nanoTime();
+                int found = index.search(plan.terms, storyNum, maxK, rows, similarity);
+                searchNanos += System.nanoTime() - start;
+                for(int i = 0; i < ks.length; i++) {
+                    for(int j = 0; j < Math.min(found, ks[i]); j++) {
+                        if(index.sentence(rows[j]) == best) {
+                            inDocument[i]++;
+                            break;
+                        }
+                    }
+                }
+
+                found = index.search(plan.terms, maxK, rows, similarity);
+                for(int i = 0; i < ks.length; i++) {
+                    for(int j = 0; j < Math.min(found, ks[i]); j++) {
+                        if(rows[j] == firstRows[storyNum] + best) {
+                            inCorpus[i]++;
+                            break;
+                        }
+                    }
+                }
+
+                String full = sherlock.answer(document, question);
+                for(int i = 0; i < ks.length; i++) {
+                    if(full.equals(sherlock.answer(document, question, index, storyNum, ks[i])))
+                        sameAnswer[i]++;
+                }
+            }
+        }
+
+        System.out.printf("%d stories, %d sentences, %d questions with an answer, dimension %d%n",
+                stories.size(), index.size(), questions, index.dimension());
+        System.out.printf("full scoring %.1f us per question, in document search %.1f us per question%n",
+                fullNanos / 1e3 / Math.max(1, questions), searchNanos / 1e3 / Math.max(1, questions));
+        System.out.printf("%5s %16s %16s %14s%n", "k", "recall@k (story)", "recall@k (all)", "same answer");
+        for(int i = 0; i < ks.length; i++) {
+            System.out.printf("%5d %16.3f %16.3f %14.3f%n", ks[i], (double) inDocument[i] / questions,
+                    (double) inCorpus[i] / questions, (double) sameAnswer[i] / questions);
+        }
+        index.close();
+    }
+}
@@ -0,0 +1,143 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.Sherlock;
+import cs.utah.sherlock.Story;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how Sherlock's throughput, latency and heap use change as generated corpora get bigger in one dimension.
+ * Prints a CSV with a row per setting, ready to plot, for example with gnuplot or a spreadsheet.
+ * @author Tobin Yehle
+ */
+public class ScalingBenchmark {
+    /**
+     * Watches the heap in the background and remembers the most that was in use.
+     */
+    static class HeapSampler extends Thread {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final AtomicLong peak = new AtomicLong();
+        private volatile boolean running = true;
+
+        HeapSampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while(running) {
+                peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long finish() throws InterruptedException {
+            running = false;
+            join();
+            return peak.get();
+        }
+    }
+
+    /**
+     * @param args The source manifest, then --vary=SETTING:V1,V2,... to pick the setting to sweep, for example
+     *             --vary=sentences:10,50,200. Any other generator setting (see {@link CorpusGenerator#main}) is held
+     *             fixed, --coref=dcoref|pronouns|none picks the coref mode and --warmup=N sets how many stories to
+     *             run before measuring.
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+        String manifest = "all-data-manifest";
+        String vary = "sentences:10,30,100";
+        Sherlock.Coref coref = Sherlock.Coref.PRONOUNS;
+        int warmup = 5;
+        List<String> settings = new ArrayList<>();
+        for(String arg : args) {
+            if(arg.startsWith("--vary="))
+                vary = arg.substring("--vary=".length());
+            else if(arg.startsWith("--coref="))
+                coref = Sherlock.Coref.valueOf(arg.substring("--coref=".length()).toUpperCase());
+            else if(arg.startsWith("--warmup="))
+                warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            else if(arg.startsWith("--"))
+                settings.add(arg);
+            else
+                manifest = arg;
+        }
+
+        String[] nameValues = vary.split(":", 2);
+        String setting = nameValues[0];
+        String[] values = nameValues[1].split(setting.equals("mix") ? ";" : ",");
+
+        List<Story> source = CorpusGenerator.readSource(manifest);
+        Sherlock sherlock = new Sherlock("stop-words.txt", coref);
+
+        // load the models and let the JIT compile the hot paths before anything is timed
+        CorpusGenerator warm = new CorpusGenerator(source);
+        warm.stories = warmup;
+        warm.seed = -1;
+        for(Story story : warm.generate())
+            sherlock.processStory(story);
+
+        System.out.println("setting,value,stories,questions,seconds,stories_per_s,questions_per_s," +
+                           "p50_ms,p90_ms,p99_ms,max_ms,peak_heap_mb,f_measure");
+        for(String value : values) {
+            CorpusGenerator generator = new CorpusGenerator(source);
+            for(String fixed : settings) {
+                if(!CorpusGenerator.configure(generator, fixed))
+                    System.err.println("WARNING: Unknown option " + fixed + " was ignored.");
+            }
+            if(!CorpusGenerator.configure(generator, "--" + setting + "=" + value)) {
+                System.err.println("Unknown setting to vary: " + setting);
+                System.exit(1);
+            }
+            List<Story> corpus = generator.generate();
+
+            System.gc();
+            HeapSampler heap = new HeapSampler();
+            heap.start();
+
+            List<Story.Question> key = new ArrayList<>();
+            Map<String, String> responses = new HashMap<>();
+            double[] latencies = new double[corpus.size()];
+            long start = System.nanoTime();
+            for(int storyNum = 0; storyNum < corpus.size(); storyNum++) {
+                Story story = corpus.get(storyNum);
+                long storyStart = System.nanoTime();
+                Map<Story.Question, String> answers = sherlock.processStory(story);
+                latencies[storyNum] = (System.nanoTime() - storyStart) / 1e6;
+
+                key.addAll(story.questions);
+                for(Map.Entry<Story.Question, String> answer : answers.entrySet())
+                    responses.put(answer.getKey().id, answer.getValue());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long peakHeap = heap.finish();
+
+            Arrays.sort(latencies);
+            System.out.printf("%s,%s,%d,%d,%.2f,%.2f,%.2f,%.1f,%.1f,%.1f,%.1f,%.1f,%.4f%n", setting,
+                    value.contains(",") ? "\"" + value + "\"" : value, corpus.size(), key.size(), seconds,
+                    corpus.size() / seconds, key.size() / seconds, percentile(latencies, 0.5),
+                    percentile(latencies, 0.9), percentile(latencies, 0.99), percentile(latencies, 1),
+                    peakHeap / 1e6, AnswerScorer.averageFMeasure(key, responses));
+        }
+    }
+
+    /**
+     * @param sorted Values in ascending order
+     * @param fraction The fraction of values that should be at or below the result
+     * @return The nearest rank percentile
+     */
+    static double percentile(double[] sorted, double fraction) {
+        if(sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
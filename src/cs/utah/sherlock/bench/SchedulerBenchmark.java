@@ -0,0 +1,76 @@
+package cs.utah.sherlock.bench;
+
+import cs.utah.sherlock.Sherlock;
+import cs.utah.sherlock.Story;
+import cs.utah.sherlock.StoryScheduler;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures interactive latency while a bulk job keeps every thread busy. The whole manifest is submitted as bulk work
+ * up front, and a client asks one question at a time about random stories as interactive requests until the bulk work
+ * is done.
+ * @author Tobin Yehle
+ */
+public class SchedulerBenchmark {
+    /**
+     * @param args The manifest to use, defaulting to all-data, then --threads=N, --interval=MS between interactive
+     *             requests, --coref=dcoref|pronouns|none and --fifo to submit the interactive requests as bulk ones, for
+     *             comparison
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+        String manifest = "all-data-manifest";
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        long interval = 200;
+        boolean fifo = false;
+        Sherlock.Coref coref = Sherlock.Coref.PRONOUNS;
+        for(String arg : args) {
+            if(arg.startsWith("--threads="))
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            else if(arg.startsWith("--interval="))
+                interval = Long.parseLong(arg.substring("--interval=".length()));
+            else if(arg.startsWith("--coref="))
+                coref = Sherlock.Coref.valueOf(arg.substring("--coref=".length()).toUpperCase());
+            else if(arg.equals("--fifo"))
+                fifo = true;
+            else
+                manifest = arg;
+        }
+
+        List<Story> stories = CorpusGenerator.readSource(manifest);
+        stories.removeIf(Objects::isNull);
+        Sherlock sherlock = new Sherlock("stop-words.txt", coref);
+        StoryScheduler scheduler = new StoryScheduler(sherlock, threads);
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Map<Story.Question, String>>> bulk = new ArrayList<>();
+        for(Story story : stories)
+            bulk.add(scheduler.submit(story, "bulk", StoryScheduler.Priority.BULK));
+        CompletableFuture<Void> bulkDone = CompletableFuture.allOf(bulk.toArray(new CompletableFuture<?>[0]));
+
+        Random random = new Random(42);
+        StoryScheduler.Priority interactive = fifo ? StoryScheduler.Priority.BULK : StoryScheduler.Priority.INTERACTIVE;
+        int asked = 0;
+        while(!bulkDone.isDone()) {
+            Story story = stories.get(random.nextInt(stories.size()));
+            if(!story.questions.isEmpty()) {
+                Story.Question question = story.questions.get(random.nextInt(story.questions.size()));
+                Story single = new Story(story.headline, story.date, story.id, story.text,
+                                         Collections.singletonList(question));
+                scheduler.submit(single, "client", interactive).join();
+                asked++;
+            }
+            Thread.sleep(interval);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.printf("%d bulk stories and %d interactive questions in %.1f s on %d threads%s%n", stories.size(),
+                asked, seconds, threads, fifo ? ", interactive requests queued as bulk" : "");
+        System.out.print(scheduler.report());
+    }
+}